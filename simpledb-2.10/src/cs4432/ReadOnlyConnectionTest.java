@@ -0,0 +1,86 @@
+package cs4432;
+
+import java.sql.*;
+import simpledb.remote.SimpleDriver;
+
+/**
+ * Class ReadOnlyConnectionTest checks that a read-only connection,
+ * whose statements run in snapshot transactions, can query a table
+ * that has no blocks yet, and that it cannot modify the table.
+ * The server must be running.
+ */
+public class ReadOnlyConnectionTest {
+    /**
+     * Test program main method in which the test program
+     * executes. It exits with a nonzero status if a check fails.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        Connection writer = null, reader = null;
+        boolean passed = true;
+        try {
+            Driver driver = new SimpleDriver();
+            writer = driver.connect("jdbc:simpledb://localhost", null);
+            reader = driver.connect("jdbc:simpledb://localhost", null);
+            reader.setReadOnly(true);
+
+            // A new table, so that its file is empty
+            String tbl = "rotest" + (System.currentTimeMillis() % 1000000000L);
+            Statement wstmt = writer.createStatement();
+            wstmt.executeUpdate("CREATE TABLE " + tbl + "(RID int, RName varchar(10))");
+            System.out.println("Table " + tbl + " created.");
+
+            // Query the empty table on the read-only connection
+            Statement rstmt = reader.createStatement();
+            int rows = countRows(rstmt, "SELECT RID FROM " + tbl);
+            passed &= check(rows == 0, "read-only query of the empty table returns " + rows + " rows");
+
+            // A read-only connection cannot insert into the table
+            boolean rejected = false;
+            try {
+                rstmt.executeUpdate("INSERT INTO " + tbl + "(RID, RName) VALUES (1, 'one')");
+            }
+            catch (SQLException e) {
+                rejected = true;
+            }
+            passed &= check(rejected, "read-only insert is rejected");
+
+            // A row committed by the other connection is seen by a later query
+            wstmt.executeUpdate("INSERT INTO " + tbl + "(RID, RName) VALUES (2, 'two')");
+            rows = countRows(rstmt, "SELECT RID FROM " + tbl);
+            passed &= check(rows == 1, "read-only query after the insert returns " + rows + " rows");
+        }
+        catch(SQLException e) {
+            e.printStackTrace();
+            passed = false;
+        }
+        finally {
+            try {
+                if (reader != null)
+                    reader.close();
+                if (writer != null)
+                    writer.close();
+            }
+            catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println(passed ? "\nAll checks passed." : "\nSome checks FAILED.");
+        if (!passed)
+            System.exit(1);
+    }
+
+    private static int countRows(Statement stmt, String query) throws SQLException {
+        ResultSet rs = stmt.executeQuery(query);
+        int rows = 0;
+        while (rs.next())
+            rows++;
+        rs.close();
+        return rows;
+    }
+
+    private static boolean check(boolean ok, String what) {
+        System.out.println((ok ? "passed: " : "FAILED: ") + what);
+        return ok;
+    }
+}
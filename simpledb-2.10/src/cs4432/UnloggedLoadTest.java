@@ -0,0 +1,102 @@
+package cs4432;
+
+import java.util.Iterator;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogMgr;
+import simpledb.planner.Planner;
+import simpledb.query.*;
+import simpledb.server.SimpleDB;
+import simpledb.tx.Transaction;
+import simpledb.tx.recovery.LogRecord;
+
+/**
+ * Class UnloggedLoadTest checks that a transaction that creates a table
+ * and an index, and then loads them, writes no update records to the log,
+ * and that a later load into the same table is logged as usual.
+ * Its inserts into the catalog tables are logged in both cases.
+ * It runs against its own new database, without the server.
+ */
+public class UnloggedLoadTest {
+    private static final int ROWS = 500;
+
+    /**
+     * Test program main method in which the test program
+     * executes. It exits with a nonzero status if a check fails.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        SimpleDB.init("unloggedtest" + System.currentTimeMillis());
+        Planner planner = SimpleDB.planner();
+        boolean passed = true;
+
+        // Create and load a table and its index in one transaction
+        long start = SimpleDB.logMgr().endLSN();
+        Transaction tx = new Transaction();
+        planner.executeUpdate("CREATE TABLE load(LId int, LName varchar(10))", tx);
+        planner.executeUpdate("CREATE INDEX loadidx ON load(LId)", tx);
+        load(planner, 0, tx);
+        tx.commit();
+        int updates = countUpdates(start);
+        passed &= check(updates == 0, "the load of the new table writes " + updates + " update records");
+
+        // Load more rows into the table, which now exists
+        start = SimpleDB.logMgr().endLSN();
+        tx = new Transaction();
+        load(planner, ROWS, tx);
+        tx.commit();
+        updates = countUpdates(start);
+        passed &= check(updates > 0, "the load of the existing table writes " + updates + " update records");
+
+        // Both loads are in the table and the index
+        tx = new Transaction(true);
+        int rows = countRows(planner, "SELECT LId FROM load", tx);
+        passed &= check(rows == 2 * ROWS, "the table holds " + rows + " rows");
+        rows = countRows(planner, "SELECT LId FROM load WHERE LId = 7", tx);
+        passed &= check(rows == 1, "the index finds " + rows + " rows with LId = 7");
+        tx.commit();
+
+        System.out.println(passed ? "\nAll checks passed." : "\nSome checks FAILED.");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void load(Planner planner, int first, Transaction tx) {
+        for (int i = first; i < first + ROWS; i++)
+            planner.executeUpdate("INSERT INTO load(LId, LName) VALUES (" + i + ", 'row" + i + "')", tx);
+    }
+
+    // Counts the SETINT and SETSTRING records written since the specified LSN
+    // to the files of the table and its index; the catalog updates are logged
+    private static int countUpdates(long start) {
+        LogMgr logMgr = SimpleDB.logMgr();
+        Iterator<BasicLogRecord> iter = logMgr.iterator();
+        int updates = 0;
+        while (iter.hasNext()) {
+            BasicLogRecord rec = iter.next();
+            if (rec.lsn() < start)
+                break;
+            int op = rec.nextInt();
+            if (op != LogRecord.SETINT && op != LogRecord.SETSTRING)
+                continue;
+            rec.nextInt();  // the transaction
+            rec.nextInt();  // the compensation flag
+            rec.nextLong(); // the transaction's previous LSN
+            if (logMgr.fileName(rec.nextInt()).startsWith("load"))
+                updates++;
+        }
+        return updates;
+    }
+
+    private static int countRows(Planner planner, String query, Transaction tx) {
+        Scan s = planner.createQueryPlan(query, tx).open();
+        int rows = 0;
+        while (s.next())
+            rows++;
+        s.close();
+        return rows;
+    }
+
+    private static boolean check(boolean ok, String what) {
+        System.out.println((ok ? "passed: " : "FAILED: ") + what);
+        return ok;
+    }
+}
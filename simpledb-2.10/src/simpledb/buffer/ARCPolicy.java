@@ -0,0 +1,119 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The adaptive replacement cache policy (Megiddo and Modha).
+ * T1 holds the resident blocks referenced once recently, and
+ * T2 the resident blocks referenced at least twice.
+ * The ghost lists B1 and B2 remember the blocks recently
+ * replaced from T1 and T2.
+ * A miss on a block in B1 (or B2) means that T1 (or T2)
+ * was too small, and the target size of T1 is adjusted accordingly,
+ * which lets the policy balance recency against frequency and
+ * resist pollution by sequential scans.
+ * A pinned buffer stays in T1 or T2, but is taken off the list's
+ * links until it is unpinned, when it goes back at the end, as in
+ * {@link LRUPolicy}. The front of each list is therefore unpinned,
+ * and every operation takes constant time.
+ */
+class ARCPolicy implements ReplacementPolicy {
+   private final int c;
+   private int p = 0;  // the target size of T1
+   private FrameList t1 = new FrameList();
+   private FrameList t2 = new FrameList();
+   private LinkedHashSet<Block> b1 = new LinkedHashSet<Block>();
+   private LinkedHashSet<Block> b2 = new LinkedHashSet<Block>();
+   
+   /**
+    * Creates an ARC policy for a partition having the specified number of frames.
+    * @param numframes the number of buffers in the partition
+    */
+   ARCPolicy(int numframes) {
+      c = numframes;
+   }
+   
+   public void pinned(Buffer buff, Block blk, boolean miss) {
+      if (miss && !b1.remove(blk) && !b2.remove(blk))
+         t1.addPinned(buff);
+      else
+         t2.addPinned(buff);
+   }
+   
+   public void prefetched(Buffer buff, Block blk) {
+      t1.addPinned(buff);
+   }
+   
+   public void unpinned(Buffer buff) {
+      t1.relink(buff);
+      t2.relink(buff);
+   }
+   
+   /**
+    * Adapts the target size of T1 if the block is in a ghost list,
+    * trims the ghost lists, and then replaces a buffer from T1 or T2.
+    */
+   public Buffer chooseVictim(Block blk) {
+      boolean inB2 = false;
+      if (blk != null && b1.contains(blk))
+         p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+      else if (blk != null && b2.contains(blk)) {
+         p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+         inB2 = true;
+      }
+      else if (t1.size() + b1.size() >= c) {
+         if (t1.size() < c)
+            removeOldest(b1);
+         else {
+            // T1 fills the whole partition: replace from it without remembering the block
+            Buffer buff = t1.first();
+            if (buff != null) {
+               t1.remove(buff);
+               return buff;
+            }
+         }
+      }
+      else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c)
+         removeOldest(b2);
+      return replace(inB2);
+   }
+   
+   private Buffer replace(boolean inB2) {
+      Buffer buff = null;
+      if (t1.size() > 0 && (t1.size() > p || (inB2 && t1.size() == p)))
+         buff = t1.first();
+      if (buff == null)
+         buff = t2.first();
+      if (buff == null)
+         buff = t1.first();
+      if (buff == null)
+         return null;
+      if (t1.remove(buff))
+         remember(b1, buff.block());
+      else if (t2.remove(buff))
+         remember(b2, buff.block());
+      return buff;
+   }
+   
+   private void remember(LinkedHashSet<Block> ghosts, Block blk) {
+      if (blk == null)
+         return;
+      ghosts.add(blk);
+      if (ghosts.size() > c)
+         removeOldest(ghosts);
+   }
+   
+   private void removeOldest(LinkedHashSet<Block> ghosts) {
+      Iterator<Block> iter = ghosts.iterator();
+      if (iter.hasNext()) {
+         iter.next();
+         iter.remove();
+      }
+   }
+   
+   public String toString() {
+      return "ARC, p=" + p + ", T1=" + t1.size() + ", T2=" + t2.size()
+            + ", B1=" + b1.size() + ", B2=" + b2.size();
+   }
+}
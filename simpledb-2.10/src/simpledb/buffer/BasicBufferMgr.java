@@ -5,7 +5,11 @@ import simpledb.file.FileMgr;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * CS4432-Project1:
@@ -13,22 +17,40 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author Douglas Lally
  * =================================================
  * Manages the pinning and unpinning of buffers to blocks.
+ * A basic buffer manager is one partition of the buffer pool:
+ * it owns a fixed set of frames, and the {@link BufferMgr}
+ * sends it only the blocks that hash to it.
+ * Its page table and free frames list are protected by a
+ * partition latch rather than by a global monitor, and disk reads
+ * into a frame, and writes of the dirty block it held before,
+ * are done after the latch has been released.
+ * The choice of which unpinned frame to replace is delegated to a
+ * {@link ReplacementPolicy}; frames that have never held a block
+ * are used before the policy is consulted.
  * @author Edward Sciore
  *
  */
 class BasicBufferMgr {
-    private static final int maxClockCycles = 10; // Maximum number of full rotations the clock pointer will make before giving up
+    private static final long DISCARD_POLL = TimeUnit.MILLISECONDS.toNanos(10); // how often a discard checks for unpinned frames
     private Buffer[] bufferpool;
-    private ArrayList<Buffer> freeFrames;
-    private ConcurrentHashMap<Block, Buffer> blocksToBuffers;
-    private final BufferReplacementPolicy replacementPolicy = BufferReplacementPolicy.LRU; // Specifies replacement policy
-    private int framePtr; // clock replacement policy frame pointer
+    private FrameList unusedFrames; // frames that do not hold a block
+    private int numAvailable; // number of unpinned frames
+    private Map<Block, Buffer> blocksToBuffers; // page table of every resident block, pinned or not
+    private Map<Block, Buffer> evicting = new HashMap<Block, Buffer>(); // replaced blocks whose dirty frame is being written
+    private final ReplacementPolicy replacementPolicy; // Specifies replacement policy
+    private volatile BufferTracer tracer = null; // null means tracing is off
+    private volatile PageCleaner cleaner = null; // the background writer, if one is running
+    private volatile Prefetcher prefetcher = null; // the read-ahead component, if one is running
+    private final int reserve; // unpinned frames that prefetching leaves to clients
+    private final ReentrantLock latch = new ReentrantLock();
+    private final Condition frameFreed = latch.newCondition();
 
     /**
      * CS4432-Project1:
      * Modified this constructor to initialize the list of
-     * free frames. Initializes a ConcurrentHashMap to keep track
-     * of the association between blocks and buffers
+     * free frames. Initializes a HashMap to keep track
+     * of the association between blocks and buffers,
+     * and creates the replacement policy for the frames
      * =================================================
      * Creates a buffer manager having the specified number
      * of buffer slots.
@@ -40,66 +62,264 @@ class BasicBufferMgr {
      * Thus this constructor cannot be called until
      * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
      * is called first.
+     * @param firstID the ID of the first buffer slot of this partition
      * @param numbuffs the number of buffer slots to allocate
+     * @param policy the replacement policy to use
      */
-    BasicBufferMgr(int numbuffs) {
+    BasicBufferMgr(int firstID, int numbuffs, BufferReplacementPolicy policy) {
         bufferpool = new Buffer[numbuffs];
-        freeFrames = new ArrayList<Buffer>(numbuffs);
-        blocksToBuffers = new ConcurrentHashMap<Block, Buffer>();
-        framePtr = 0;
+        unusedFrames = new FrameList();
+        blocksToBuffers = new HashMap<Block, Buffer>(numbuffs * 2);
         for (int i=0; i<numbuffs; i++) {
-            bufferpool[i] = new Buffer(i);
-            freeFrames.add(bufferpool[i]);
+            bufferpool[i] = new Buffer(firstID + i);
+            bufferpool[i].available = true;
+            unusedFrames.addLast(bufferpool[i]);
         }
-
+        numAvailable = numbuffs;
+        reserve = numbuffs / 4;
+        replacementPolicy = policy.create(bufferpool);
     }
 
     /**
      * Flushes the dirty buffers modified by the specified transaction.
      * @param txnum the transaction's id number
      */
-    synchronized void flushAll(int txnum) {
+    void flushAll(int txnum) {
         for (Buffer buff : bufferpool)
             if (buff.isModifiedBy(txnum))
                 buff.flush();
     }
 
+    /**
+     * Flushes the dirty buffers that hold blocks of the specified file.
+     * @param filename the name of the file
+     */
+    void flushFile(String filename) {
+        for (Buffer buff : bufferpool) {
+            Block blk = buff.block();
+            if (blk != null && blk.fileName().equals(filename))
+                buff.flush();
+        }
+    }
+
+    /**
+     * Drops the frames that hold blocks of the specified
+     * file from the page table, without writing them.
+     * The frames stay available, and hold no block until they are reused.
+     * A frame that is pinned is waited for, until it is unpinned
+     * or the specified time has elapsed.
+     * @param filename the name of the file
+     * @param maxwait the maximum time to wait, in milliseconds
+     * @return false if some frame of the file was still pinned, and was not dropped
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    boolean discard(String filename, long maxwait) throws InterruptedException {
+        // the wait is measured from the start, since a deadline overflows for a huge maxwait
+        long start = System.nanoTime();
+        long maxNanos = TimeUnit.MILLISECONDS.toNanos(maxwait);
+        latch.lock();
+        try {
+            while (!dropFrames(filename)) {
+                long nanos = maxNanos - (System.nanoTime() - start);
+                if (nanos <= 0)
+                    return false;
+                // an unpin wakes a single thread, which may not be this one
+                frameFreed.awaitNanos(Math.min(nanos, DISCARD_POLL));
+                // the wakeup may have been meant for a thread that wants a frame
+                if (numAvailable > 0)
+                    frameFreed.signal();
+            }
+            return true;
+        }
+        finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Drops the unpinned frames of the specified file.
+     * Must be called with the partition latch held.
+     * @return false if some frame of the file was pinned
+     */
+    private boolean dropFrames(String filename) {
+        boolean all = true;
+        for (Buffer buff : bufferpool) {
+            Block blk = buff.block();
+            if (blk == null || !blk.fileName().equals(filename))
+                continue;
+            if (buff.isPinned())
+                all = false;
+            else {
+                blocksToBuffers.remove(blk);
+                buff.clearBlock();
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Flushes every dirty buffer.
+     */
+    void flushAll() {
+        for (Buffer buff : bufferpool)
+            buff.flush();
+    }
+
+    /**
+     * Flushes the buffers whose first unwritten logged change
+     * is older than the specified LSN.
+     * @param lsn the LSN
+     */
+    void flushDirtyBefore(long lsn) {
+        for (Buffer buff : bufferpool) {
+            long rec = buff.recoveryLSN();
+            if (rec >= 0 && rec < lsn)
+                buff.flush();
+        }
+    }
+
+    /**
+     * Adds the blocks of the buffers that have unwritten logged changes
+     * to the dirty page table, together with their recovery LSNs.
+     * The block and the LSN of a buffer are read under its lock,
+     * so that they belong together.
+     * @param table the dirty page table
+     */
+    void dirtyPages(Map<Block,Long> table) {
+        for (Buffer buff : bufferpool) {
+            synchronized (buff) {
+                long rec = buff.recoveryLSN();
+                if (rec >= 0)
+                    table.put(buff.block(), rec);
+            }
+        }
+    }
+
 
     /**
      * CS4432-Project1:
      * Modified this function to properly update the
      * list of free frames when a page is pinned.
      * Once a page is pinned the buffer is removed from
-     * the free frames list. The buffer is recorded as
-     * containing the specified block.
+     * the free frames list. When an unpinned frame is
+     * reused for a different block, the page table entry of
+     * its previous block is dropped and replaced by one for
+     * the specified block.
      * =================================================
      * Pins a buffer to the specified block.
      * If there is already a buffer assigned to that block
      * then that buffer is used;
      * otherwise, an unpinned buffer from the pool is chosen.
-     * Returns a null value if there are no available buffers.
+     * If no buffer is available, the calling thread waits
+     * until one is unpinned or the specified time has elapsed,
+     * and a null value is then returned.
+     * The block is read into the chosen buffer after the
+     * partition latch is released; a thread that finds the
+     * block while it is still being read waits for the read
+     * to complete. Likewise, a thread that misses on a block whose
+     * dirty frame is being written out waits for the write.
+     * Reads from disk, and first pins of prefetched blocks,
+     * are reported to the prefetcher so that it can detect scans.
      * @param blk a reference to a disk block
-     * @return the pinned buffer
+     * @param maxwait the maximum time to wait, in milliseconds
+     * @return the pinned buffer, or null if none became available
+     * @throws InterruptedException if the thread is interrupted while waiting
      */
-    synchronized Buffer pin(Block blk) {
-        Buffer buff = findExistingBuffer(blk);
-        if (buff == null) {
-            buff = chooseUnpinnedBuffer();
-            if (buff == null)
-                return null;
-            buff.assignToBlock(blk);
-        }
-        buff.pin();
+    Buffer pin(Block blk, long maxwait) throws InterruptedException {
+        while (true) {
+            Buffer buff;
+            Buffer writer = null;
+            Block evicted = null;
+            boolean mustLoad = false;
+            boolean firstUse = false;
+            latch.lock();
+            try {
+                buff = findExistingBuffer(blk);
+                if (buff == null)
+                    writer = evicting.get(blk);
+                if (buff == null && writer == null) {
+                    buff = awaitUnpinnedBuffer(blk, maxwait);
+                    if (buff == null) {
+                        // another thread may have read the block in, or replaced it, while this one waited
+                        buff = findExistingBuffer(blk);
+                        if (buff == null)
+                            writer = evicting.get(blk);
+                        if (buff == null && writer == null)
+                            return null;
+                    }
+                    else {
+                        evicted = evict(buff);
+                        // Associate the block with the buffer
+                        blocksToBuffers.put(blk, buff);
+                        buff.beginLoad();
+                        mustLoad = true;
+                    }
+                }
+                if (buff != null) {
+                    // the first client pin of a prefetched block counts as its miss
+                    firstUse = mustLoad || buff.prefetched;
+                    buff.prefetched = false;
+                    pinBuffer(buff, blk, firstUse);
+                }
+            }
+            finally {
+                latch.unlock();
+            }
 
-        // Remove the pinned frame from the free frames list
-        if(freeFrames.contains(buff)) {
-            freeFrames.remove(buff);
+            if (buff == null) {
+                // the block's frame is being written before it is reused
+                writer.awaitLoad();
+                continue;
+            }
+            Prefetcher p = prefetcher;
+            if (firstUse && p != null)
+                p.accessed(blk);
+            if (mustLoad)
+                load(buff, blk, evicted);
+            else
+                buff.awaitLoad();
+            if (blk.equals(buff.block()))
+                return buff;
+            // the read of the block failed in another thread, so try again
+            unpin(buff);
         }
+    }
 
-        // Associate the block with the buffer
-        blocksToBuffers.put(blk, buff);
-
-        return buff;
+    /**
+     * Reads the specified block into an unpinned frame,
+     * without keeping it pinned, unless the block is already resident.
+     * The block is not read if that would leave fewer than a quarter
+     * of the frames of the partition available to clients.
+     * The frame is pinned while the block is being read,
+     * so a client that pins the block meanwhile waits for the read.
+     * @param blk a reference to a disk block
+     * @return true if the block was read
+     */
+    boolean prefetch(Block blk) {
+        Buffer buff;
+        Block evicted;
+        latch.lock();
+        try {
+            if (numAvailable <= reserve || findExistingBuffer(blk) != null || evicting.containsKey(blk))
+                return false;
+            buff = chooseUnpinnedBuffer(blk);
+            if (buff == null)
+                return false;
+            evicted = evict(buff);
+            blocksToBuffers.put(blk, buff);
+            buff.beginLoad();
+            buff.pin();
+            buff.available = false;
+            numAvailable--;
+            buff.prefetched = true;
+            replacementPolicy.prefetched(buff, blk);
+        }
+        finally {
+            latch.unlock();
+        }
+        load(buff, blk, evicted);
+        unpin(buff);
+        return true;
     }
 
     /**
@@ -107,31 +327,113 @@ class BasicBufferMgr {
      * Modified this function to properly update the
      * list of free frames when a page is pinned.
      * Once a page is pinned the buffer is removed from
-     * the free frames list.
+     * the free frames list, and the new block is added
+     * to the page table.
      * =================================================
      * Allocates a new block in the specified file, and
      * pins a buffer to it.
-     * Returns null (without allocating the block) if
-     * there are no available buffers.
+     * If no buffer is available, the calling thread waits
+     * until one is unpinned or the specified time has elapsed,
+     * and a null value is then returned (without allocating the block).
+     * The block is appended to the file, and forced if asked to,
+     * after the partition latch is released, as is the write of the
+     * dirty block that the chosen frame held before; the frame is
+     * pinned meanwhile, so no other thread can replace it.
+     * The returned buffer might not come from this partition:
+     * if the new block turns out to hash to a different partition
+     * (which only happens when another thread appends to the file
+     * concurrently), or another thread has pinned the block
+     * while it was being appended, the chosen frame is released
+     * and the block is pinned through its proper partition instead.
      * @param filename the name of the file
      * @param fmtr a pageformatter object, used to format the new block
-     * @return the pinned buffer
+     * @param force true if the new block must be forced to disk
+     * @param maxwait the maximum time to wait, in milliseconds
+     * @param mgr the buffer manager that routes blocks to partitions
+     * @return the pinned buffer, or null if none became available
+     * @throws InterruptedException if the thread is interrupted while waiting
      */
-    synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-        Buffer buff = chooseUnpinnedBuffer();
-        if (buff == null)
-            return null;
-        buff.assignToNew(filename, fmtr);
-        buff.pin();
+    Buffer pinNew(String filename, PageFormatter fmtr, boolean force, long maxwait, BufferMgr mgr) throws InterruptedException {
+        Buffer buff;
+        Block evicted;
+        latch.lock();
+        try {
+            buff = awaitUnpinnedBuffer(null, maxwait);
+            if (buff == null)
+                return null;
+            evicted = evict(buff);
+            buff.beginLoad();
+            buff.pin();
+            buff.available = false;
+            numAvailable--;
+        }
+        finally {
+            latch.unlock();
+        }
 
-        // Remove the pinned frame from the free frames list
-        if(freeFrames.contains(buff)) {
-            freeFrames.remove(buff);
+        boolean written = (evicted == null);
+        boolean appended = false;
+        try {
+            if (!written) {
+                buff.flush();
+                written = true;
+            }
+            buff.assignToNew(filename, fmtr, force);
+            appended = true;
+        }
+        finally {
+            if (!appended) {
+                latch.lock();
+                try {
+                    buff.endLoad();
+                    if (written) {
+                        if (evicted != null)
+                            evicting.remove(evicted);
+                        releaseNewFrame(buff);
+                    }
+                    else {
+                        restoreEvicted(buff, evicted);
+                        replacementPolicy.pinned(buff, evicted, true);
+                    }
+                }
+                finally {
+                    latch.unlock();
+                }
+                if (!written)
+                    unpin(buff);
+            }
         }
-        //System.out.println("===New buffer assigned!===\nBuffer Manager State:\n" + toString());
 
+        Block blk = buff.block();
+        latch.lock();
+        try {
+            if (evicted != null)
+                evicting.remove(evicted);
+            buff.endLoad();
+            if (mgr.partitionFor(blk) == this && findExistingBuffer(blk) == null) {
+                blocksToBuffers.put(blk, buff);
+                replacementPolicy.pinned(buff, blk, true);
+                return buff;
+            }
+            releaseNewFrame(buff);
+        }
+        finally {
+            latch.unlock();
+        }
+        return mgr.partitionFor(blk).pin(blk, maxwait);
+    }
 
-        return buff;
+    /**
+     * Releases the frame that pinNew chose, leaving it without a block.
+     * Must be called with the partition latch held.
+     */
+    private void releaseNewFrame(Buffer buff) {
+        buff.clearBlock();
+        buff.unpin();
+        buff.available = true;
+        numAvailable++;
+        unusedFrames.addLast(buff);
+        frameFreed.signal();
     }
 
     /**
@@ -139,20 +441,32 @@ class BasicBufferMgr {
      * Modified this function to properly update
      * the list of free frames when a frame is unpinned.
      * An unpinned frame is free to be used and is therefore
-     * added to the list of free frames.
+     * handed to the replacement policy as a candidate.
+     * The frame keeps its page table entry until it is
+     * chosen for replacement, so that a later pin of the
+     * same block does not have to re-read it from disk.
      * =================================================
      * Unpins the specified buffer.
+     * The pin count is decremented without taking the partition latch;
+     * the latch is needed only when the count drops to zero,
+     * in which case a single waiting thread (if any) is woken up.
      * @param buff the buffer to be unpinned
      */
-    synchronized void unpin(Buffer buff) {
-        buff.unpin();
-        if (!buff.isPinned()) {
-            // Add the unpinned frame from the free frames list
-            if(!freeFrames.contains(buff)) {
-                freeFrames.add(buff);
+    void unpin(Buffer buff) {
+        if (buff.unpin() > 0)
+            return;
+        latch.lock();
+        try {
+            // the buffer may have been pinned again before the latch was acquired
+            if (!buff.isPinned() && !buff.available) {
+                buff.available = true;
+                numAvailable++;
+                replacementPolicy.unpinned(buff);
+                frameFreed.signal();
             }
-            // Remove the block associated with this frame
-            blocksToBuffers.remove(buff.block());
+        }
+        finally {
+            latch.unlock();
         }
     }
 
@@ -161,7 +475,13 @@ class BasicBufferMgr {
      * @return the number of available buffers
      */
     int available() {
-        return freeFrames.size();
+        latch.lock();
+        try {
+            return numAvailable;
+        }
+        finally {
+            latch.unlock();
+        }
     }
 
     /**
@@ -174,77 +494,200 @@ class BasicBufferMgr {
         return blocksToBuffers.get(blk);
     }
 
-
     /**
-     * CS4432-Project1:
-     * Returns a frame based on the selected replacement policy
+     * Pins the buffer, takes it out of the count of available
+     * frames if it was unpinned, and informs the replacement policy.
+     * Must be called with the partition latch held.
      */
-    private synchronized Buffer chooseUnpinnedBuffer() {
-        Buffer b = null;
-        if(replacementPolicy.equals(BufferReplacementPolicy.LRU)){
-            b = chooseLRU();
+    private void pinBuffer(Buffer buff, Block blk, boolean miss) {
+        buff.pin();
+        if (buff.available) {
+            buff.available = false;
+            numAvailable--;
         }
-        else if(replacementPolicy.equals(BufferReplacementPolicy.CLOCK)){
-            b = chooseClock();
+        replacementPolicy.pinned(buff, blk, miss);
+    }
+
+    /**
+     * Returns an unpinned buffer, waiting on the partition's
+     * condition until one is freed if necessary.
+     * Must be called with the partition latch held.
+     * The latch is released while waiting, so another thread may
+     * read the block in, or start writing it out, meanwhile; the wait
+     * then ends without a buffer, and the caller must look the block up again.
+     * If the wait succeeds but more frames remain free,
+     * the next waiting thread is woken up as well, so that
+     * a wakeup is never lost when several frames are freed at once.
+     * @param blk the block that will be read into the buffer, or null for a new block
+     * @param maxwait the maximum time to wait, in milliseconds
+     * @return an unpinned buffer, or null if none became available in time
+     */
+    private Buffer awaitUnpinnedBuffer(Block blk, long maxwait) throws InterruptedException {
+        Buffer buff = chooseUnpinnedBuffer(blk);
+        if (buff != null)
+            return buff;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(maxwait);
+        try {
+            while (buff == null && nanos > 0) {
+                nanos = frameFreed.awaitNanos(nanos);
+                if (blk != null && (findExistingBuffer(blk) != null || evicting.containsKey(blk)))
+                    break;
+                buff = chooseUnpinnedBuffer(blk);
+            }
         }
-        if(b != null){
-            b.setSecondChance(true);
-            System.out.println("Based on replacement policy " + replacementPolicy + " buffer ID " + b.getID() + " was selected");
+        finally {
+            if (numAvailable > (buff == null ? 0 : 1))
+                frameFreed.signal();
         }
-        return b;
+        return buff;
     }
 
     /**
-     * CS4432-Project1: Returns an unpinned buffer to use based on LRU
-     * If there are no free buffers, it returns null instead
-     * @return a free buffer to use, or null if no free buffers exist
+     * Reads the block into a frame that has just been assigned to it,
+     * and wakes up the threads waiting for the read.
+     * If the frame held a dirty block before, that block is written first,
+     * and then stops being recorded as evicted.
+     * If the read fails, the frame is taken out of the page table
+     * and the pin is released before the exception is rethrown;
+     * if the write fails, the frame is given back its previous block,
+     * which is still dirty.
+     * @param evicted the dirty block that the frame held before, or null
      */
-    private Buffer chooseLRU(){
-        Buffer oldest = null;
-        for(Buffer b : bufferpool){
-            if(!b.isPinned()){
-                // Special case if we haven't found an unpinned buffer yet
-                if(oldest == null){
-                    System.out.println("Oldest bufferID found so far: " + b.getID());
-                    oldest = b;
+    private void load(Buffer buff, Block blk, Block evicted) {
+        boolean written = (evicted == null);
+        boolean loaded = false;
+        try {
+            if (!written) {
+                buff.flush();
+                written = true;
+                latch.lock();
+                try {
+                    evicting.remove(evicted);
+                }
+                finally {
+                    latch.unlock();
+                }
+            }
+            buff.assignToBlock(blk);
+            loaded = true;
+        }
+        finally {
+            if (!loaded) {
+                latch.lock();
+                try {
+                    blocksToBuffers.remove(blk);
+                    if (written)
+                        buff.clearBlock();
+                    else
+                        restoreEvicted(buff, evicted);
                 }
-                // Compare access time, replace if needed
-                else if(oldest.getLastAccessTime() > b.getLastAccessTime()){
-                    System.out.println("Oldest bufferID found so far: " + b.getID());
-                    oldest = b;
+                finally {
+                    latch.unlock();
                 }
             }
+            buff.endLoad();
+            if (!loaded)
+                unpin(buff);
         }
-        return oldest;
     }
 
     /**
-     * CS4432-Project1: Returns an unpinned buffer to use based on clock replacement policy.
-     * Once an candidate frame is found for eviction it is returned.
-     * If no frame can be found within 10 clock cycles, null is returned instead
-     * @return a free buffer to use
+     * Drops the page table entry of the block held by
+     * a frame chosen for replacement.
+     * If the frame is dirty, the block is recorded as evicted, and the
+     * caller writes the frame once it has released the partition latch;
+     * until then a thread that misses on the block waits for the frame,
+     * rather than reading stale contents from disk.
+     * The page cleaner is then woken up, since it has fallen behind.
+     * Must be called with the partition latch held.
+     * @param buff the frame being replaced
+     * @return the block that the caller must write, or null if the frame is clean
      */
-    private Buffer chooseClock(){
-        for(int i = 0; i < bufferpool.length * maxClockCycles; i++){
-            // Reset the frame pointer to the beginning if needed
-            if(framePtr == bufferpool.length){
-                framePtr = 0;
-            }
-            Buffer b = bufferpool[framePtr];
-            if(!b.isPinned() && b.hasSecondChance()) {
-                // frame has second chance so skip
-                System.out.println("BufferID " + b.getID() + " had a second chance");
-                b.setSecondChance(false);
-            }
-            else if(!b.isPinned() && !b.hasSecondChance()) {
-                // frame is free for use so return it
-                framePtr++;
-                return b;
-            }
-            framePtr++;
-        }
-        System.err.println("All buffers were pinned, unable to select replacement");
-        return null;
+    private Block evict(Buffer buff) {
+        buff.prefetched = false;
+        Block old = buff.block();
+        if (old == null)
+            return null;
+        blocksToBuffers.remove(old);
+        if (!buff.isDirty())
+            return null;
+        PageCleaner c = cleaner;
+        if (c != null)
+            c.wakeUp();
+        evicting.put(old, buff);
+        return old;
+    }
+
+    /**
+     * Gives a frame whose write failed back its previous block,
+     * which stays in the page table and remains dirty.
+     * Must be called with the partition latch held.
+     */
+    private void restoreEvicted(Buffer buff, Block evicted) {
+        evicting.remove(evicted);
+        blocksToBuffers.put(evicted, buff);
+    }
+
+
+    /**
+     * CS4432-Project1:
+     * Returns a frame based on the selected replacement policy.
+     * A frame that holds no block is used if there is one;
+     * otherwise the policy chooses among the unpinned frames.
+     * @param blk the block that will be read into the frame, or null for a new block
+     * @return an unpinned frame, or null if every frame is pinned
+     */
+    private Buffer chooseUnpinnedBuffer(Block blk) {
+        if (numAvailable == 0)
+            return null;
+        Buffer b = unusedFrames.first();
+        if (b != null)
+            unusedFrames.remove(b);
+        else
+            b = replacementPolicy.chooseVictim(blk);
+        BufferTracer t = tracer;
+        if (b != null && t != null)
+            t.replaced(b, b.block(), replacementPolicy);
+        return b;
+    }
+
+    /**
+     * Installs a tracer for this partition and its buffers.
+     * @param t the tracer, or null to turn tracing off
+     */
+    void setTracer(BufferTracer t) {
+        tracer = t;
+        for (Buffer b : bufferpool)
+            b.tracer = t;
+    }
+
+    /**
+     * Sets the page cleaner to be woken up when a dirty frame
+     * has to be written in order to be replaced.
+     * @param c the page cleaner
+     */
+    void setCleaner(PageCleaner c) {
+        cleaner = c;
+    }
+
+    /**
+     * Sets the prefetcher to be told about the blocks
+     * that clients read from disk.
+     * @param p the prefetcher
+     */
+    void setPrefetcher(Prefetcher p) {
+        prefetcher = p;
+    }
+
+    /**
+     * Writes the dirty, unpinned buffers of this partition to disk.
+     * Called by the page cleaner; the partition latch is not held
+     * during the writes, so pins proceed concurrently.
+     */
+    void cleanDirtyBuffers() {
+        for (Buffer b : dirtyBuffers())
+            if (!b.isPinned())
+                b.flush();
     }
 
     /** CS4432-Project1: Get an array of dirty buffers in this manager
@@ -282,14 +725,18 @@ class BasicBufferMgr {
      */
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder("BasicBufferMgr{");
-        sb.append("bufferpool=\n").append(Arrays.toString(bufferpool)).append('\n');
-        sb.append(", freeFrames=\n").append(Arrays.toString(freeFrames.toArray())).append('\n');
-        sb.append(", replacementPolicy=").append(replacementPolicy);
-        if(replacementPolicy.equals(BufferReplacementPolicy.CLOCK)) {
-            sb.append(",\nframePtr=").append(framePtr);
+        latch.lock();
+        try {
+            final StringBuilder sb = new StringBuilder("BasicBufferMgr{");
+            sb.append("bufferpool=\n").append(Arrays.toString(bufferpool)).append('\n');
+            sb.append(", available=").append(numAvailable);
+            sb.append(", residentBlocks=").append(blocksToBuffers.size());
+            sb.append(", replacementPolicy=").append(replacementPolicy);
+            sb.append('}');
+            return sb.toString();
+        }
+        finally {
+            latch.unlock();
         }
-        sb.append('}');
-        return sb.toString();
     }
 }
@@ -2,8 +2,11 @@ package simpledb.buffer;
 
 import simpledb.file.Block;
 import simpledb.file.Page;
+import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * An individual buffer.
  * A buffer wraps a page and stores information about its status,
@@ -18,18 +21,24 @@ public class Buffer {
     private Page contents = new Page();
     private Block blk = null;
     private int ID;
-    private int pins = 0;
+    private final AtomicInteger pins = new AtomicInteger();
+    private volatile boolean loading = false; // true while the block is being read into the page
     private int modifiedBy = -1;  // negative means not modified
-    private int logSequenceNumber = -1; // negative means no corresponding log record
-
-
-
-    private long lastAccessTime = 0; // The last time the Buffer was accessed
+    private long logSequenceNumber = -1; // negative means no corresponding log record
+    private long recoveryLSN = -1; // the first logged change since the page was written; negative means none
     private boolean refBit = true; // Second chance bit for clock replacement policy
+    volatile BufferTracer tracer = null; // set by the buffer manager; null means tracing is off
+
+    // Links for the intrusive frame list this buffer currently belongs to (see FrameList)
+    FrameList list = null;
+    Buffer listPrev = null, listNext = null;
+    // True if the buffer is unpinned and counted as available by its partition
+    boolean available = false;
+    // True if the block was read ahead of demand and has not been pinned by a client since
+    boolean prefetched = false;
 
     /**
-     * CS4432-Project1: Initialize the last access time to the time this buffer was created
-     * Assign an ID number to this buffer. This ID is just used for identification purposes,
+     * CS4432-Project1: Assign an ID number to this buffer. This ID is just used for identification purposes,
      * it is not required for buffer functionality
      *
      * Creates a new buffer, wrapping a new
@@ -47,12 +56,9 @@ public class Buffer {
      */
     public Buffer(int ID) {
         this.ID = ID;
-        lastAccessTime = System.nanoTime();
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
      * Returns the integer value at the specified offset of the
      * buffer's page.
      * If an integer was not stored at that location,
@@ -61,13 +67,10 @@ public class Buffer {
      * @return the integer value at that offset
      */
     public int getInt(int offset) {
-        lastAccessTime = System.nanoTime();
         return contents.getInt(offset);
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
      * Returns the string value at the specified offset of the
      * buffer's page.
      * If a string was not stored at that location,
@@ -76,13 +79,10 @@ public class Buffer {
      * @return the string value at that offset
      */
     public String getString(int offset) {
-        lastAccessTime = System.nanoTime();
         return contents.getString(offset);
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
      * Writes an integer to the specified offset of the
      * buffer's page.
      * This method assumes that the transaction has already
@@ -90,30 +90,36 @@ public class Buffer {
      * The buffer saves the id of the transaction
      * and the LSN of the log record.
      * A negative lsn value indicates that a log record
-     * was not necessary.
+     * was not necessary; otherwise the LSN also becomes the page LSN.
+     * The method is synchronized with {@link #flush()}, so that
+     * a modification made while the page cleaner is writing the
+     * page is not lost.
      * @param offset the byte offset within the page
      * @param val the new integer value to be written
      * @param txnum the id of the transaction performing the modification
      * @param lsn the LSN of the corresponding log record
      */
-    public void setInt(int offset, int val, int txnum, int lsn) {
-        lastAccessTime = System.nanoTime();
+    public synchronized void setInt(int offset, int val, int txnum, long lsn) {
         modifiedBy = txnum;
-        if (lsn >= 0)
+        if (lsn >= 0) {
             logSequenceNumber = lsn;
+            if (recoveryLSN < 0)
+                recoveryLSN = lsn;
+            contents.setLSN(lsn);
+        }
         contents.setInt(offset, val);
-        System.out.println("===Buffer " + ID + " Modified===");
+        BufferTracer t = tracer;
+        if (t != null)
+            t.modified(this, txnum, lsn);
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
      * Writes a string to the specified offset of the
      * buffer's page.
      * This method assumes that the transaction has already
      * written an appropriate log record.
      * A negative lsn value indicates that a log record
-     * was not necessary.
+     * was not necessary; otherwise the LSN also becomes the page LSN.
      * The buffer saves the id of the transaction
      * and the LSN of the log record.
      * @param offset the byte offset within the page
@@ -121,67 +127,91 @@ public class Buffer {
      * @param txnum the id of the transaction performing the modification
      * @param lsn the LSN of the corresponding log record
      */
-    public void setString(int offset, String val, int txnum, int lsn) {
-        lastAccessTime = System.nanoTime();
+    public synchronized void setString(int offset, String val, int txnum, long lsn) {
         modifiedBy = txnum;
-        if (lsn >= 0)
+        if (lsn >= 0) {
             logSequenceNumber = lsn;
+            if (recoveryLSN < 0)
+                recoveryLSN = lsn;
+            contents.setLSN(lsn);
+        }
         contents.setString(offset, val);
-        System.out.println("===Buffer " + ID + " Modified===");
+        BufferTracer t = tracer;
+        if (t != null)
+            t.modified(this, txnum, lsn);
+    }
+
+    /**
+     * Returns a copy of the buffer's page, which stays
+     * unchanged when the buffer is modified or replaced.
+     * @return the copy of the page
+     */
+    public Page copyContents() {
+        return contents.copy();
+    }
+
+    /**
+     * Returns the LSN of the latest log record applied to the page,
+     * which recovery compares with a record before redoing it.
+     * @return the page LSN, or -1 if the database has no page LSNs
+     */
+    public long pageLSN() {
+        return contents.getLSN();
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer (we assume accessing the block reference
-     * counts as access to the buffer as a whole)
-     *
      * Returns a reference to the disk block
      * that the buffer is pinned to.
      * @return a reference to a disk block
      */
     public Block block() {
-        lastAccessTime = System.nanoTime();
         return blk;
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer,
-     * only write to disk if this block is dirty
-     *
      * Writes the page to its disk block if the
      * page is dirty.
      * The method ensures that the corresponding log
      * record has been written to disk prior to writing
-     * the page to disk.
+     * the page to disk; the log is not touched if that record
+     * is already below the log's flushed LSN.
+     * Nothing is written if the page is not dirty.
      */
-    void flush() {
-        lastAccessTime = System.nanoTime();
+    synchronized void flush() {
         if (isDirty()) {
-            SimpleDB.logMgr().flush(logSequenceNumber);
+            LogMgr logMgr = SimpleDB.logMgr();
+            if (logSequenceNumber >= logMgr.flushedLSN())
+                logMgr.flush(logSequenceNumber);
             contents.write(blk);
             modifiedBy = -1;
+            recoveryLSN = -1;
         }
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
+     * Returns the LSN of the first logged modification made to the page
+     * since it was last written to disk, which is where redo of the page
+     * would have to start.
+     * @return the recovery LSN, or -1 if the page has no unwritten logged changes
+     */
+    synchronized long recoveryLSN() {
+        return recoveryLSN;
+    }
+
+    /**
      * Increases the buffer's pin count.
+     * @return the new pin count
      */
-    void pin() {
-        lastAccessTime = System.nanoTime();
-        pins++;
-        //System.out.println("===Buffer " + ID + " Pinned===");
+    int pin() {
+        return pins.incrementAndGet();
     }
 
     /**
-     * CS4432-Project1: Update the last access time for this buffer
-     *
      * Decreases the buffer's pin count.
+     * @return the new pin count
      */
-    void unpin() {
-        lastAccessTime = System.nanoTime();
-        pins--;
-        //System.out.println("===Buffer " + ID + " Unpinned===");
+    int unpin() {
+        return pins.decrementAndGet();
     }
 
     /**
@@ -190,7 +220,49 @@ public class Buffer {
      * @return true if the buffer is pinned
      */
     boolean isPinned() {
-        return pins > 0;
+        return pins.get() > 0;
+    }
+
+    /**
+     * Marks the buffer as waiting for its block to be read.
+     * Called by the buffer manager, while holding its latch,
+     * just before the buffer is assigned to a new block.
+     */
+    void beginLoad() {
+        loading = true;
+    }
+
+    /**
+     * Marks the read of the buffer's block as complete,
+     * and wakes up the threads waiting for it.
+     */
+    synchronized void endLoad() {
+        loading = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the buffer's block has been read,
+     * if a read is in progress.
+     * Threads that pin a block while another thread is
+     * still reading it call this method before using the page.
+     */
+    void awaitLoad() {
+        if (!loading)
+            return;
+        boolean interrupted = false;
+        synchronized (this) {
+            while (loading) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
@@ -218,40 +290,50 @@ public class Buffer {
      * of the previous page are first written to disk.
      * @param b a reference to the data block
      */
-    void assignToBlock(Block b) {
+    synchronized void assignToBlock(Block b) {
         flush();
         blk = b;
         contents.read(blk);
-        pins = 0;
     }
 
     /**
-     * CS4432-Project1: Allow this buffer a second chance
+     * Detaches the buffer from its block, without writing it.
+     * Called by the buffer manager when the block could not be read.
+     */
+    synchronized void clearBlock() {
+        blk = null;
+        modifiedBy = -1;
+        recoveryLSN = -1;
+    }
+
+    /**
      * Initializes the buffer's page according to the specified formatter,
      * and appends the page to the specified file.
      * If the buffer was dirty, then the contents
      * of the previous page are first written to disk.
+     * The formatting of a new block is not logged, so the file is
+     * normally forced at once; recovery can then always redo the logged
+     * changes to the block on top of its formatted contents.
+     * The buffer manager calls this method without holding its latch,
+     * since the append and the force may take a while.
      * @param filename the name of the file
      * @param fmtr a page formatter, used to initialize the page
+     * @param force true if the file must be forced
      */
-    void assignToNew(String filename, PageFormatter fmtr) {
+    synchronized void assignToNew(String filename, PageFormatter fmtr, boolean force) {
         flush();
         fmtr.format(contents);
+        contents.setLSN(0);
         blk = contents.append(filename);
-        pins = 0;
-    }
-
-    /**
-     * CS4432-Project1: Reports the last updated time for use with replacement policies
-     * The time is represented in nanoseconds since the UNIX Epoch
-     */
-    public long getLastAccessTime(){
-        return lastAccessTime;
+        if (force)
+            SimpleDB.fileMgr().force(filename);
     }
 
     /**
      * CS4432-Project1: Returns the ref (second chance) bit of a buffer,
      * which is used by the clock replacement policy.
+     * The bit is set once per pin, which is the only
+     * recency information the buffer itself keeps.
      */
     public boolean hasSecondChance() {
         return refBit;
@@ -278,7 +360,6 @@ public class Buffer {
                 ", pins=" + pins +
                 ", modifiedBy=" + modifiedBy +
                 ", logSequenceNumber=" + logSequenceNumber +
-                ", lastAccessTime=" + lastAccessTime +
                 ", refBit=" + refBit +
                 "}\n";
     }
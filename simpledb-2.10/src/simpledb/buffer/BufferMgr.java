@@ -2,6 +2,11 @@ package simpledb.buffer;
 
 import simpledb.file.Block;
 import simpledb.file.FileMgr;
+import simpledb.server.SimpleDB;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The publicly-accessible buffer manager.
@@ -15,13 +20,22 @@ import simpledb.file.FileMgr;
  * The waiting threads are removed from the list when 
  * a buffer becomes available.
  * If a thread has been waiting for a buffer for an
- * excessive amount of time (currently, 10 seconds)
+ * excessive amount of time (by default,
+ * {@link SimpleDB#WAIT_TIMEOUT} milliseconds)
  * then a {@link BufferAbortException} is thrown.
+ * <p>
+ * The buffer pool is divided into partitions, each of which is a
+ * {@link BasicBufferMgr} owning its own frames, page table and latch.
+ * A block is always handled by the partition selected by its hash code,
+ * so threads that touch different blocks rarely contend with each other,
+ * and a thread waiting for a free frame waits only on its partition.
  * @author Edward Sciore
  */
 public class BufferMgr {
-   private static final long MAX_TIME = 10000; // 10 seconds
-   private BasicBufferMgr bufferMgr;
+   private static final int MIN_PARTITION_SIZE = 64; // fewest frames in a partition
+   private BasicBufferMgr[] partitions;
+   private int numbuffers;
+   private volatile Prefetcher prefetcher = null;
    
    /**
     * Creates a new buffer manager having the specified 
@@ -34,10 +48,38 @@ public class BufferMgr {
     * Thus this constructor cannot be called until 
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
+    * The number of partitions is chosen from the number of
+    * available processors, such that each partition has at least
+    * 64 buffers; small buffer pools therefore have a single partition.
+    * The replacement policy is the one configured in
+    * {@link SimpleDB#BUFFER_POLICY}.
     * @param numbuffers the number of buffer slots to allocate
     */
    public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+      this(numbuffers, defaultPartitions(numbuffers), SimpleDB.BUFFER_POLICY);
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers, divided into the specified number
+    * of partitions.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param numpartitions the number of partitions, which must be a power of two
+    * @param policy the replacement policy used by each partition
+    */
+   public BufferMgr(int numbuffers, int numpartitions, BufferReplacementPolicy policy) {
+      if (numpartitions < 1 || Integer.bitCount(numpartitions) != 1
+            || numpartitions > numbuffers)
+         throw new IllegalArgumentException("bad partition count " + numpartitions);
+      this.numbuffers = numbuffers;
+      partitions = new BasicBufferMgr[numpartitions];
+      int first = 0;
+      for (int i=0; i<numpartitions; i++) {
+         int size = numbuffers / numpartitions
+                  + (i < numbuffers % numpartitions ? 1 : 0);
+         partitions[i] = new BasicBufferMgr(first, size, policy);
+         first += size;
+      }
    }
    
    /**
@@ -48,14 +90,21 @@ public class BufferMgr {
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
+   public Buffer pin(Block blk) {
+      return pin(blk, SimpleDB.WAIT_TIMEOUT);
+   }
+   
+   /**
+    * Pins a buffer to the specified block, as
+    * {@link #pin(Block)} does, but waits at most
+    * the specified time for a buffer.
+    * @param blk a reference to a disk block
+    * @param maxwait the longest time to wait, in milliseconds
+    * @return the buffer pinned to that block
+    */
+   public Buffer pin(Block blk, long maxwait) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
-         }
+         Buffer buff = partitionFor(blk).pin(blk, maxwait);
          if (buff == null)
             throw new BufferAbortException();
          return buff;
@@ -70,18 +119,45 @@ public class BufferMgr {
     * potentially waiting until a buffer becomes available.
     * If no buffer becomes available within a fixed 
     * time period, then a {@link BufferAbortException} is thrown.
+    * The new block is forced to disk.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @return the buffer pinned to that block
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      return pinNew(filename, fmtr, true);
+   }
+   
+   /**
+    * Pins a buffer to a new block in the specified file,
+    * as {@link #pinNew(String, PageFormatter)} does,
+    * but forces the new block to disk only if asked to.
+    * A block need not be forced if its file will be forced
+    * before any logged change to it can reach the log.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @param force true if the new block must be forced
+    * @return the buffer pinned to that block
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr, boolean force) {
+      return pinNew(filename, fmtr, force, SimpleDB.WAIT_TIMEOUT);
+   }
+   
+   /**
+    * Pins a buffer to a new block in the specified file, as
+    * {@link #pinNew(String, PageFormatter, boolean)} does,
+    * but waits at most the specified time for a buffer.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the page
+    * @param force true if the new block must be forced
+    * @param maxwait the longest time to wait, in milliseconds
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   public Buffer pinNew(String filename, PageFormatter fmtr, boolean force, long maxwait) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
-         }
+         // the new block will almost certainly be the current end of the file
+         Block expected = new Block(filename, SimpleDB.fileMgr().size(filename));
+         Buffer buff = partitionFor(expected).pinNew(filename, fmtr, force, maxwait, this);
          if (buff == null)
             throw new BufferAbortException();
          return buff;
@@ -94,13 +170,11 @@ public class BufferMgr {
    /**
     * Unpins the specified buffer. 
     * If the buffer's pin count becomes 0,
-    * then the threads on the wait list are notified.
+    * then one thread waiting on the buffer's partition is notified.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
+   public void unpin(Buffer buff) {
+      partitionFor(buff.block()).unpin(buff);
    }
    
    /**
@@ -108,7 +182,74 @@ public class BufferMgr {
     * @param txnum the transaction's id number
     */
    public void flushAll(int txnum) {
-      bufferMgr.flushAll(txnum);
+      for (BasicBufferMgr part : partitions)
+         part.flushAll(txnum);
+   }
+   
+   /**
+    * Flushes the dirty buffers that hold blocks of the specified file.
+    * @param filename the name of the file
+    */
+   public void flushFile(String filename) {
+      for (BasicBufferMgr part : partitions)
+         part.flushFile(filename);
+   }
+   
+   /**
+    * Drops the buffers that hold blocks of the specified file,
+    * without writing them.
+    * Called before the file is deleted, when no transaction
+    * can be using it; a buffer that is still pinned, such as one
+    * being prefetched, is waited for.
+    * If a buffer is still pinned after {@link SimpleDB#WAIT_TIMEOUT}
+    * milliseconds, a {@link BufferAbortException} is thrown.
+    * @param filename the name of the file
+    */
+   public void discard(String filename) {
+      try {
+         for (BasicBufferMgr part : partitions)
+            if (!part.discard(filename, SimpleDB.WAIT_TIMEOUT))
+               throw new BufferAbortException();
+      }
+      catch(InterruptedException e) {
+         throw new BufferAbortException();
+      }
+   }
+   
+   /**
+    * Flushes every dirty buffer, whichever transaction modified it.
+    * Called before a checkpoint.
+    */
+   public void flushAll() {
+      for (BasicBufferMgr part : partitions)
+         part.flushAll();
+   }
+   
+   /**
+    * Flushes the buffers whose first unwritten logged change
+    * is older than the specified LSN, whichever transaction made it.
+    * Called by checkpoints, so that redo never has to go back further
+    * than the previous checkpoint.
+    * @param lsn the LSN
+    */
+   public void flushDirtyBefore(long lsn) {
+      for (BasicBufferMgr part : partitions)
+         part.flushDirtyBefore(lsn);
+   }
+   
+   /**
+    * Returns the dirty page table: the blocks of the buffers that have
+    * logged changes not yet written to disk, each with the LSN of the
+    * first such change.
+    * The table is built without stopping other threads, so it is only
+    * a snapshot; a checkpoint combines it with the log written after it.
+    * @return the dirty page table
+    */
+   public Map<Block,Long> dirtyPages() {
+      Map<Block,Long> table = new HashMap<Block,Long>();
+      for (BasicBufferMgr part : partitions)
+         part.dirtyPages(table);
+      return table;
    }
    
    /**
@@ -116,11 +257,76 @@ public class BufferMgr {
     * @return the number of available buffers
     */
    public int available() {
-      return bufferMgr.available();
+      int count = 0;
+      for (BasicBufferMgr part : partitions)
+         count += part.available();
+      return count;
+   }
+   
+   /**
+    * Starts a background thread that writes dirty, unpinned
+    * buffers to disk, so that threads needing a buffer
+    * rarely have to write a page themselves.
+    */
+   public void startCleaner() {
+      PageCleaner cleaner = new PageCleaner(partitions);
+      for (BasicBufferMgr part : partitions)
+         part.setCleaner(cleaner);
+      cleaner.start();
+   }
+   
+   /**
+    * Starts the background threads that read blocks ahead of
+    * sequential scans, and that serve {@link #prefetch prefetch} requests.
+    */
+   public void startPrefetcher() {
+      Prefetcher p = new Prefetcher(this, numbuffers);
+      for (BasicBufferMgr part : partitions)
+         part.setPrefetcher(p);
+      prefetcher = p;
+   }
+   
+   /**
+    * Asks for the specified blocks to be read into the
+    * buffer pool in the background, without pinning them.
+    * The request is only a hint; it is ignored if the
+    * prefetcher is not running or is busy, and blocks
+    * are not read into frames that clients are likely to need.
+    * @param filename the name of the file
+    * @param blknum the number of the first block
+    * @param count the number of blocks
+    */
+   public void prefetch(String filename, int blknum, int count) {
+      Prefetcher p = prefetcher;
+      if (p != null)
+         p.prefetch(filename, blknum, count);
+   }
+   
+   /**
+    * Installs a tracer that is told about buffer replacements
+    * and modifications, replacing any previous tracer.
+    * @param tracer the tracer, or null to turn tracing off
+    */
+   public void setTracer(BufferTracer tracer) {
+      for (BasicBufferMgr part : partitions)
+         part.setTracer(tracer);
+   }
+   
+   /**
+    * Returns the partition responsible for the specified block.
+    * @param blk a reference to a disk block
+    * @return the partition that manages the block
+    */
+   BasicBufferMgr partitionFor(Block blk) {
+      int h = blk.hashCode();
+      h ^= (h >>> 16);
+      return partitions[h & (partitions.length - 1)];
    }
    
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+   private static int defaultPartitions(int numbuffers) {
+      int wanted = Math.min(2 * Runtime.getRuntime().availableProcessors(),
+                            numbuffers / MIN_PARTITION_SIZE);
+      return (wanted <= 1) ? 1 : Integer.highestOneBit(wanted);
    }
 
     /**
@@ -130,7 +336,7 @@ public class BufferMgr {
     @Override
     public String toString() {
         return "BufferMgr{" +
-                "wrappedBufferMgr=" + bufferMgr +
+                "partitions=" + Arrays.toString(partitions) +
                 '}';
     }
 }
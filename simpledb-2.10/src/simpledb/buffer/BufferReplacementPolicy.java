@@ -3,7 +3,32 @@ package simpledb.buffer;
 /**
  * @author Doug Lally
  * enum to list possible replacement policies.
+ * Each constant creates the {@link ReplacementPolicy} object
+ * used by one partition of the buffer pool.
+ * The policy is chosen at startup by setting
+ * {@link simpledb.server.SimpleDB#BUFFER_POLICY}.
  */
 public enum BufferReplacementPolicy {
-    LRU, CLOCK;
+    LRU {
+        ReplacementPolicy create(Buffer[] frames) { return new LRUPolicy(); }
+    },
+    CLOCK {
+        ReplacementPolicy create(Buffer[] frames) { return new ClockPolicy(frames); }
+    },
+    LRU_K {
+        ReplacementPolicy create(Buffer[] frames) { return new LRUKPolicy(frames.length); }
+    },
+    TWO_Q {
+        ReplacementPolicy create(Buffer[] frames) { return new TwoQPolicy(frames.length); }
+    },
+    ARC {
+        ReplacementPolicy create(Buffer[] frames) { return new ARCPolicy(frames.length); }
+    };
+
+    /**
+     * Creates a policy object for a partition having the specified frames.
+     * @param frames the buffers of the partition
+     * @return a new replacement policy
+     */
+    abstract ReplacementPolicy create(Buffer[] frames);
 }
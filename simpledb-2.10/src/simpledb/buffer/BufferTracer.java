@@ -0,0 +1,30 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * A hook for observing the activity of the buffer manager,
+ * intended for debugging and teaching.
+ * A tracer is installed by calling {@link BufferMgr#setTracer(BufferTracer)}.
+ * When no tracer is installed, the buffer manager does no
+ * tracing work beyond a single null check per event.
+ * The methods are called on the thread that causes the event,
+ * sometimes while a partition latch is held, so they should return quickly.
+ */
+public interface BufferTracer {
+   /**
+    * Called when a buffer is chosen to be assigned to a different block.
+    * @param buff the chosen buffer
+    * @param oldblk the block the buffer held before, or null if it held none
+    * @param policy the replacement policy that chose the buffer
+    */
+   void replaced(Buffer buff, Block oldblk, ReplacementPolicy policy);
+   
+   /**
+    * Called after a value in a buffer's page has been modified.
+    * @param buff the modified buffer
+    * @param txnum the id of the modifying transaction
+    * @param lsn the LSN of the corresponding log record, or a negative value
+    */
+   void modified(Buffer buff, int txnum, long lsn);
+}
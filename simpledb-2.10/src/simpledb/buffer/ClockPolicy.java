@@ -0,0 +1,50 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The clock (second chance) replacement policy.
+ * Pinning a buffer sets its reference bit.
+ * The clock hand sweeps the buffers in a circle, clearing the
+ * reference bits of unpinned buffers, and chooses the first unpinned
+ * buffer whose bit is already clear.
+ * A victim is therefore found within two rotations:
+ * a replacement takes time linear in the number of frames
+ * in the worst case, and is short when few buffers are pinned
+ * or recently used.
+ */
+class ClockPolicy implements ReplacementPolicy {
+   private Buffer[] frames;
+   private int hand = 0;
+   
+   ClockPolicy(Buffer[] frames) {
+      this.frames = frames;
+   }
+   
+   public void pinned(Buffer buff, Block blk, boolean miss) {
+      buff.setSecondChance(true);
+   }
+   
+   public void prefetched(Buffer buff, Block blk) {
+      buff.setSecondChance(true);
+   }
+   
+   public void unpinned(Buffer buff) {}
+   
+   public Buffer chooseVictim(Block blk) {
+      for (int i = 0; i < 2 * frames.length; i++) {
+         Buffer buff = frames[hand];
+         hand = (hand + 1) % frames.length;
+         if (buff.isPinned())
+            continue;
+         if (!buff.hasSecondChance())
+            return buff;
+         buff.setSecondChance(false);
+      }
+      return null;
+   }
+   
+   public String toString() {
+      return "CLOCK, hand=" + hand;
+   }
+}
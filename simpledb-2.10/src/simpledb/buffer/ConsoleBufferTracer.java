@@ -0,0 +1,17 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * A buffer tracer that prints each event to the standard output.
+ */
+public class ConsoleBufferTracer implements BufferTracer {
+   public void replaced(Buffer buff, Block oldblk, ReplacementPolicy policy) {
+      System.out.println("Based on replacement policy " + policy + " buffer ID "
+                         + buff.getID() + " was selected");
+   }
+   
+   public void modified(Buffer buff, int txnum, long lsn) {
+      System.out.println("===Buffer " + buff.getID() + " Modified===");
+   }
+}
@@ -0,0 +1,131 @@
+package simpledb.buffer;
+
+/**
+ * An intrusive doubly-linked list of buffer frames.
+ * The links are stored in the buffers themselves,
+ * so adding, removing and testing membership
+ * all take constant time and allocate nothing.
+ * A buffer can belong to at most one frame list at a time.
+ * A replacement policy can take a member off the links while it
+ * is pinned, and link it back at the end when it is unpinned;
+ * it still counts towards the size of the list meanwhile.
+ * The front of such a list is then always an unpinned buffer.
+ * The list is not thread-safe; callers are expected to
+ * hold the lock of the buffer manager that owns it.
+ */
+class FrameList {
+   private Buffer head, tail;
+   private int size = 0;
+
+   /**
+    * Appends the buffer to the end of the list.
+    * If the buffer is already in a list, it is first removed from it.
+    * @param buff the buffer to append
+    */
+   void addLast(Buffer buff) {
+      addPinned(buff);
+      link(buff);
+   }
+
+   /**
+    * Adds a pinned buffer to the list without linking it,
+    * so that it is not at the front until it is relinked.
+    * If the buffer is already in a list, it is first removed from it.
+    * @param buff the buffer to add
+    */
+   void addPinned(Buffer buff) {
+      if (buff.list != null)
+         buff.list.remove(buff);
+      buff.list = this;
+      size++;
+   }
+
+   /**
+    * Takes a buffer of the list off the links, when it is pinned.
+    * Does nothing if the buffer is not in this list, or is not linked.
+    * @param buff the buffer
+    */
+   void unlink(Buffer buff) {
+      if (buff.list == this && isLinked(buff))
+         unlinkFrom(buff);
+   }
+
+   /**
+    * Links a buffer of the list back at the end, when it is unpinned.
+    * Does nothing if the buffer is not in this list, or is already linked.
+    * @param buff the buffer
+    */
+   void relink(Buffer buff) {
+      if (buff.list == this && !isLinked(buff))
+         link(buff);
+   }
+
+   /**
+    * Removes the buffer from the list.
+    * Does nothing if the buffer is not in this list.
+    * @param buff the buffer to remove
+    * @return true if the buffer was in the list
+    */
+   boolean remove(Buffer buff) {
+      if (buff.list != this)
+         return false;
+      if (isLinked(buff))
+         unlinkFrom(buff);
+      buff.list = null;
+      size--;
+      return true;
+   }
+
+   /**
+    * Returns true if the buffer is in this list.
+    * @param buff the buffer
+    * @return true if the buffer is in this list
+    */
+   boolean contains(Buffer buff) {
+      return buff.list == this;
+   }
+
+   /**
+    * Returns the linked buffer at the front of the list,
+    * or null if no buffer of the list is linked.
+    * @return the first linked buffer in the list
+    */
+   Buffer first() {
+      return head;
+   }
+
+   /**
+    * Returns the number of buffers in the list,
+    * including the ones that are not linked.
+    * @return the size of the list
+    */
+   int size() {
+      return size;
+   }
+
+   private boolean isLinked(Buffer buff) {
+      return buff.listPrev != null || head == buff;
+   }
+
+   private void link(Buffer buff) {
+      buff.listPrev = tail;
+      buff.listNext = null;
+      if (tail == null)
+         head = buff;
+      else
+         tail.listNext = buff;
+      tail = buff;
+   }
+
+   private void unlinkFrom(Buffer buff) {
+      if (buff.listPrev == null)
+         head = buff.listNext;
+      else
+         buff.listPrev.listNext = buff.listNext;
+      if (buff.listNext == null)
+         tail = buff.listPrev;
+      else
+         buff.listNext.listPrev = buff.listPrev;
+      buff.listPrev = buff.listNext = null;
+   }
+}
@@ -0,0 +1,108 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy, with K = 2.
+ * The policy replaces the unpinned buffer whose block has the
+ * oldest second-most-recent reference; blocks that have been
+ * referenced only once are replaced first, in LRU order.
+ * Pins of a block that follow each other within a short
+ * correlated reference period count as a single reference,
+ * so that a page touched several times by one scan
+ * is not mistaken for a popular page.
+ * The reference history of a block is retained for a while
+ * after the block is replaced.
+ * Time is measured by a logical clock that ticks once per pin.
+ * The candidate buffers are kept in a sorted set,
+ * so each operation takes logarithmic time.
+ */
+class LRUKPolicy implements ReplacementPolicy {
+   private final int correlatedPeriod;
+   private final Map<Block,long[]> history;
+   private final Map<Buffer,Candidate> candidates = new HashMap<Buffer,Candidate>();
+   private final TreeSet<Candidate> victims = new TreeSet<Candidate>();
+   private long clock = 0;
+   
+   /**
+    * Creates an LRU-K policy for a partition having the specified number of frames.
+    * @param numframes the number of buffers in the partition
+    */
+   LRUKPolicy(int numframes) {
+      correlatedPeriod = Math.max(1, numframes / 4);
+      final int retained = 2 * numframes;
+      history = new LinkedHashMap<Block,long[]>(retained, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> eldest) {
+            return size() > retained;
+         }
+      };
+   }
+   
+   public void pinned(Buffer buff, Block blk, boolean miss) {
+      Candidate c = candidates.remove(buff);
+      if (c != null)
+         victims.remove(c);
+      clock++;
+      long[] refs = history.get(blk);
+      if (refs == null)
+         history.put(blk, new long[] {clock, 0});
+      else if (clock - refs[0] > correlatedPeriod) {
+         refs[1] = refs[0];
+         refs[0] = clock;
+      }
+      else
+         refs[0] = clock;
+   }
+   
+   public void prefetched(Buffer buff, Block blk) {}
+   
+   /**
+    * A block without history has been prefetched and not yet used;
+    * it is ordered as if it had been used once just now,
+    * so that it is not replaced before the client gets to it.
+    */
+   public void unpinned(Buffer buff) {
+      long[] refs = history.get(buff.block());
+      Candidate c = (refs == null) ? new Candidate(buff, 0, clock)
+                                   : new Candidate(buff, refs[1], refs[0]);
+      candidates.put(buff, c);
+      victims.add(c);
+   }
+   
+   public Buffer chooseVictim(Block blk) {
+      Candidate c = victims.pollFirst();
+      if (c == null)
+         return null;
+      candidates.remove(c.buff);
+      return c.buff;
+   }
+   
+   public String toString() {
+      return "LRU-K, candidates=" + victims.size();
+   }
+   
+   /**
+    * An unpinned buffer, together with the reference times
+    * of its block at the time it was unpinned.
+    * The ordering puts the best victim first.
+    */
+   private static class Candidate implements Comparable<Candidate> {
+      final Buffer buff;
+      final long kth, last;
+      
+      Candidate(Buffer buff, long kth, long last) {
+         this.buff = buff;
+         this.kth = kth;
+         this.last = last;
+      }
+      
+      public int compareTo(Candidate c) {
+         if (kth != c.kth)
+            return (kth < c.kth) ? -1 : 1;
+         if (last != c.last)
+            return (last < c.last) ? -1 : 1;
+         return buff.getID() - c.buff.getID();
+      }
+   }
+}
@@ -0,0 +1,35 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The least-recently-used replacement policy.
+ * Unpinned buffers are kept in a list in the order in which
+ * they were unpinned, so the buffer at the front of the list
+ * is the least recently used one.
+ * Every operation takes constant time.
+ */
+class LRUPolicy implements ReplacementPolicy {
+   private FrameList unpinned = new FrameList();
+   
+   public void pinned(Buffer buff, Block blk, boolean miss) {
+      unpinned.remove(buff);
+   }
+   
+   public void prefetched(Buffer buff, Block blk) {}
+   
+   public void unpinned(Buffer buff) {
+      unpinned.addLast(buff);
+   }
+   
+   public Buffer chooseVictim(Block blk) {
+      Buffer buff = unpinned.first();
+      if (buff != null)
+         unpinned.remove(buff);
+      return buff;
+   }
+   
+   public String toString() {
+      return "LRU";
+   }
+}
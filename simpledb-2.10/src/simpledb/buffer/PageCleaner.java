@@ -0,0 +1,77 @@
+package simpledb.buffer;
+
+/**
+ * The background page cleaner.
+ * The cleaner is a daemon thread that periodically writes the
+ * dirty, unpinned buffers of every partition to disk,
+ * so that a thread that needs a buffer for a different block
+ * almost always finds a clean one, and does not have to
+ * write the old page (and force the log) itself.
+ * Each write goes through {@link Buffer#flush()}, which
+ * first flushes the log up to the page's LSN,
+ * so the write-ahead rule is respected.
+ * The cleaner is also woken up early whenever a partition
+ * had to write a dirty page in order to replace it.
+ * A round that fails is retried in the next one; the failure is
+ * reported on the console when it first occurs, and again
+ * when a round succeeds, rather than once per round.
+ */
+class PageCleaner implements Runnable {
+   private static final long INTERVAL = 100; // milliseconds between rounds
+   private BasicBufferMgr[] partitions;
+   private boolean requested = false;
+   private String failure = null; // the failure of the previous round, if any
+   
+   /**
+    * Creates a cleaner for the specified partitions.
+    * @param partitions the partitions of the buffer pool
+    */
+   PageCleaner(BasicBufferMgr[] partitions) {
+      this.partitions = partitions;
+   }
+   
+   /**
+    * Starts the cleaner in a new daemon thread.
+    */
+   void start() {
+      Thread t = new Thread(this, "simpledb-page-cleaner");
+      t.setDaemon(true);
+      t.start();
+   }
+   
+   /**
+    * Asks the cleaner to start a new round without waiting
+    * for the rest of its interval.
+    */
+   synchronized void wakeUp() {
+      requested = true;
+      notify();
+   }
+   
+   public void run() {
+      while (true) {
+         try {
+            awaitRound();
+            for (BasicBufferMgr part : partitions)
+               part.cleanDirtyBuffers();
+            if (failure != null)
+               System.err.println("page cleaner: writing pages again");
+            failure = null;
+         }
+         catch (InterruptedException e) {
+            return;
+         }
+         catch (RuntimeException e) {
+            if (!e.toString().equals(failure))
+               System.err.println("page cleaner: cannot write pages, will retry: " + e);
+            failure = e.toString();
+         }
+      }
+   }
+   
+   private synchronized void awaitRound() throws InterruptedException {
+      if (!requested)
+         wait(INTERVAL);
+      requested = false;
+   }
+}
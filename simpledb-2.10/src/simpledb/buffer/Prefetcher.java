@@ -0,0 +1,122 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+
+import java.util.concurrent.*;
+
+/**
+ * The read-ahead component of the buffer manager.
+ * The prefetcher watches the blocks that clients read from disk
+ * (or find in the pool only because they were prefetched),
+ * and when a file is being read block after block it reads
+ * the next few blocks of the file into free frames in the background.
+ * Clients can also ask for a range of blocks explicitly.
+ * The reads are done by a small pool of daemon threads,
+ * so several of them can be outstanding at once.
+ * Prefetching is only a hint: requests that cannot be
+ * served right away are dropped.
+ */
+class Prefetcher {
+   private static final int THREADS = 4;
+   private static final int MAX_WINDOW = 32; // most blocks read ahead of a scan
+   private static final int SEQUENTIAL_RUN = 2; // consecutive blocks that make a scan
+   private static final int MAX_RUNS = 1024; // files whose access pattern is remembered
+   private final BufferMgr mgr;
+   private final int window;
+   private final ConcurrentHashMap<String,Run> runs = new ConcurrentHashMap<String,Run>();
+   private final ThreadPoolExecutor executor;
+
+   /**
+    * Creates a prefetcher for the specified buffer manager.
+    * The number of blocks read ahead of a scan is an eighth
+    * of the buffer pool, up to 32 blocks, so that a scan
+    * cannot push much of the pool out.
+    * @param mgr the buffer manager
+    * @param numbuffers the number of buffers in the pool
+    */
+   Prefetcher(BufferMgr mgr, int numbuffers) {
+      this.mgr = mgr;
+      window = Math.max(1, Math.min(MAX_WINDOW, numbuffers / 8));
+      ThreadFactory daemons = new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-prefetcher");
+            t.setDaemon(true);
+            return t;
+         }
+      };
+      executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<Runnable>(4 * MAX_WINDOW),
+                                        daemons, new ThreadPoolExecutor.DiscardPolicy());
+   }
+
+   /**
+    * Records that a client has pinned a block that was
+    * not resident, or that had been prefetched.
+    * If the block continues a sequential run through its file,
+    * the blocks following it are prefetched, one window at a time.
+    * @param blk the block
+    */
+   void accessed(Block blk) {
+      String filename = blk.fileName();
+      Run r = runs.get(filename);
+      if (r == null) {
+         if (runs.size() >= MAX_RUNS)
+            runs.clear();
+         Run existing = runs.putIfAbsent(filename, r = new Run());
+         if (existing != null)
+            r = existing;
+      }
+      int from, to;
+      synchronized (r) {
+         int n = blk.number();
+         if (n == r.last + 1)
+            r.length++;
+         else {
+            r.length = 1;
+            r.ahead = n;
+         }
+         r.last = n;
+         // issue the next window when the scan is halfway through the current one
+         if (r.length < SEQUENTIAL_RUN || n + window / 2 < r.ahead)
+            return;
+         from = Math.max(r.ahead, n) + 1;
+         to = n + window;
+         r.ahead = to;
+      }
+      prefetch(filename, from, to - from + 1);
+   }
+
+   /**
+    * Reads the specified blocks into the buffer pool in the background.
+    * Blocks beyond the end of the file are ignored.
+    * @param filename the name of the file
+    * @param blknum the number of the first block
+    * @param count the number of blocks
+    */
+   void prefetch(String filename, int blknum, int count) {
+      int end = Math.min(blknum + count, SimpleDB.fileMgr().size(filename));
+      for (int i = blknum; i < end; i++) {
+         final Block blk = new Block(filename, i);
+         executor.execute(new Runnable() {
+            public void run() {
+               try {
+                  mgr.partitionFor(blk).prefetch(blk);
+               }
+               catch (RuntimeException e) {
+                  // a failed read ahead is left to the client that needs the block
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * The recent access pattern of a file.
+    */
+   private static class Run {
+      int last = -1;   // the last block accessed
+      int length = 0;  // the number of consecutive blocks ending at last
+      int ahead = -1;  // the last block requested for prefetching
+   }
+}
@@ -0,0 +1,52 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The interface implemented by each buffer replacement policy.
+ * Each partition of the buffer pool has its own policy object,
+ * which it notifies as its buffers are pinned and unpinned,
+ * and which it asks for a buffer to replace on a miss.
+ * The methods are always called while the partition's latch is held,
+ * so implementations do not need to synchronize.
+ * Buffers that have never been assigned to a block are used
+ * before the policy is consulted.
+ * @see BufferReplacementPolicy
+ */
+public interface ReplacementPolicy {
+   /**
+    * Records that a buffer has been pinned.
+    * The method is called on every pin,
+    * including pins of a buffer that is already pinned.
+    * @param buff the pinned buffer
+    * @param blk the block the buffer is pinned to, which may not have been read yet
+    * @param miss true if the block was not resident and has just been assigned to the buffer
+    */
+   void pinned(Buffer buff, Block blk, boolean miss);
+   
+   /**
+    * Records that a block is being read into a buffer ahead of demand.
+    * The buffer is unpinned as soon as the read completes,
+    * and the first client pin of the block is then reported
+    * to {@link #pinned(Buffer, Block, boolean) pinned} as a miss.
+    * @param buff the buffer chosen for the block
+    * @param blk the prefetched block
+    */
+   void prefetched(Buffer buff, Block blk);
+   
+   /**
+    * Records that the pin count of a buffer has dropped to zero,
+    * so that the buffer may now be replaced.
+    * @param buff the unpinned buffer
+    */
+   void unpinned(Buffer buff);
+   
+   /**
+    * Chooses an unpinned buffer to be replaced.
+    * The chosen buffer stops being a candidate for replacement;
+    * the caller then assigns it to a block and pins it.
+    * @param blk the block that will be read into the buffer, or null if a new block is being allocated
+    * @return an unpinned buffer, or null if every buffer is pinned
+    */
+   Buffer chooseVictim(Block blk);
+}
@@ -0,0 +1,89 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The 2Q replacement policy (Johnson and Shasha).
+ * A block read into the pool for the first time goes into
+ * the FIFO queue A1in; only a block that is referenced again after
+ * leaving A1in is admitted to the LRU queue Am.
+ * A1out remembers the blocks recently replaced from A1in.
+ * A sequential scan therefore only cycles through A1in,
+ * and does not push the frequently used pages out of Am.
+ * A pinned buffer stays in its queue, but is taken off the queue's
+ * links until it is unpinned, when it goes back at the end, as in
+ * {@link LRUPolicy}. The front of each queue is therefore unpinned,
+ * and every operation takes constant time.
+ */
+class TwoQPolicy implements ReplacementPolicy {
+   private final int maxIn, maxOut;
+   private FrameList a1in = new FrameList();
+   private FrameList am = new FrameList();
+   private LinkedHashSet<Block> a1out = new LinkedHashSet<Block>();
+   
+   /**
+    * Creates a 2Q policy for a partition having the specified number of frames.
+    * A1in holds a quarter of the frames, and A1out
+    * remembers half as many blocks as there are frames.
+    * @param numframes the number of buffers in the partition
+    */
+   TwoQPolicy(int numframes) {
+      maxIn = Math.max(1, numframes / 4);
+      maxOut = Math.max(1, numframes / 2);
+   }
+   
+   public void pinned(Buffer buff, Block blk, boolean miss) {
+      if (miss) {
+         if (a1out.remove(blk))
+            am.addPinned(buff);
+         else
+            a1in.addPinned(buff);
+      }
+      else {
+         a1in.unlink(buff);
+         am.unlink(buff);
+      }
+   }
+   
+   public void prefetched(Buffer buff, Block blk) {
+      a1in.addPinned(buff);
+   }
+   
+   public void unpinned(Buffer buff) {
+      a1in.relink(buff);
+      am.relink(buff);
+   }
+   
+   public Buffer chooseVictim(Block blk) {
+      Buffer buff = null;
+      if (a1in.size() > maxIn)
+         buff = a1in.first();
+      if (buff == null)
+         buff = am.first();
+      if (buff == null)
+         buff = a1in.first();
+      if (buff == null)
+         return null;
+      if (a1in.remove(buff))
+         remember(buff.block());
+      else
+         am.remove(buff);
+      return buff;
+   }
+   
+   private void remember(Block blk) {
+      if (blk == null)
+         return;
+      a1out.add(blk);
+      if (a1out.size() > maxOut) {
+         Iterator<Block> iter = a1out.iterator();
+         iter.next();
+         iter.remove();
+      }
+   }
+   
+   public String toString() {
+      return "2Q, A1in=" + a1in.size() + ", Am=" + am.size() + ", A1out=" + a1out.size();
+   }
+}
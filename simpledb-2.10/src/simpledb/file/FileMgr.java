@@ -1,10 +1,16 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
+import simpledb.server.SimpleDB;
+import static simpledb.file.Page.INT_SIZE;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The SimpleDB file manager.
@@ -13,18 +19,59 @@ import java.util.*;
  * a file block to a Java byte buffer,
  * writing the contents of a byte buffer to a file block,
  * and appending the contents of a byte buffer to the end of a file.
- * These methods are called exclusively by the class {@link simpledb.file.Page Page},
- * and are thus package-private.
- * The class also contains two public methods:
+ * These methods are called by the class {@link simpledb.file.Page Page};
+ * the log manager, which keeps its own buffers, also calls
+ * {@link #read(Block, ByteBuffer) read} and {@link #write(Block, ByteBuffer) write}.
+ * The class also contains two other public methods:
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * The log manager, which keeps the log in a series of segment files,
+ * also lists, renames and deletes files.
+ * <p>
+ * The block size is a property of the database: it is chosen when the
+ * database is created, from {@link SimpleDB#BLOCK_SIZE}, and recorded
+ * in a header file in the database directory.
+ * A database without a header file was created by an older
+ * version of SimpleDB, and has blocks of 400 bytes.
+ * The header also records whether the pages of the database end with
+ * a page LSN (see {@link Page#getLSN()}); databases created before
+ * page LSNs were introduced do not have them, and their clients
+ * may use the whole block.
+ * <p>
+ * The file manager has no global lock: blocks are read and written
+ * with positional channel I/O, so many requests can be outstanding at once,
+ * and only appends to the same file are serialized.
+ * Each open file has a latch, which its readers and writers hold in
+ * shared mode; a file is closed, to be renamed or deleted, only
+ * after the latch has been taken in exclusive mode, so a channel
+ * is never closed in the middle of another thread's I/O.
+ * Files are opened without synchronous writes; durability comes from
+ * {@link #force(String) force} and {@link #forceAll() forceAll},
+ * which the log and recovery managers call where write-ahead logging needs them.
  * @author Edward Sciore
  */
 public class FileMgr {
+   /**
+    * The name of the database header file.
+    */
+   public static final String HEADER_FILE = "simpledb.hdr";
+   
+   /**
+    * The block size of a database that has no header file.
+    */
+   public static final int LEGACY_BLOCK_SIZE = 400;
+   
+   private static final int HEADER_MAGIC = 0x53444248; // "SDBH"
+   private static final int FORMAT_PAGE_LSN = 1; // the pages end with their LSN
+   private static final int MIN_BLOCK_SIZE = 4096;
+   private static final int MAX_BLOCK_SIZE = 32768;
    private File dbDirectory;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private int blocksize;
+   private boolean pageLSNs = false;
+   private boolean mmapReads;
+   private ConcurrentMap<String,OpenFile> openFiles = new ConcurrentHashMap<String,OpenFile>();
 
    /**
     * Creates a file manager for the specified database.
@@ -33,6 +80,8 @@ public class FileMgr {
     * If the folder does not exist, then a folder containing
     * an empty database is created automatically.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+    * The block size is read from the database header file;
+    * a header is written if the directory holds no files yet.
     * @param dbname the name of the directory that holds the database
     */
    public FileMgr(String dbname) {
@@ -48,34 +97,111 @@ public class FileMgr {
       for (String filename : dbDirectory.list())
          if (filename.startsWith("temp"))
          new File(dbDirectory, filename).delete();
+
+      File header = new File(dbDirectory, HEADER_FILE);
+      if (header.exists())
+         blocksize = readHeader(header);
+      else if (dbDirectory.list().length == 0) {
+         blocksize = writeHeader(header, SimpleDB.BLOCK_SIZE);
+         pageLSNs = true;
+      }
+      else
+         blocksize = LEGACY_BLOCK_SIZE;
+      mmapReads = SimpleDB.MMAP_READS;
    }
 
    /**
     * Reads the contents of a disk block into a bytebuffer.
+    * Reads are positional, so any number of them
+    * may be in progress at once, even on the same file.
+    * A bytebuffer larger than a block is filled with
+    * the consecutive blocks starting at the specified one;
+    * the part of the bytebuffer past the end of the file is zeroed.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   public void read(Block blk, ByteBuffer bb) {
       try {
          bb.clear();
-         FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         OpenFile f = useFile(blk.fileName());
+         try {
+            long pos = (long) blk.number() * blocksize;
+            while (bb.hasRemaining()) {
+               int n = f.channel.read(bb, pos);
+               if (n < 0)
+                  break;
+               pos += n;
+            }
+         }
+         finally {
+            f.release();
+         }
+         while (bb.hasRemaining())
+            bb.put((byte) 0);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
    }
 
+   /**
+    * Returns a read-only view of the specified block
+    * in a memory mapping of its file, or null if the block is not mapped.
+    * Only table files are mapped, and only if
+    * {@link SimpleDB#MMAP_READS} was set when the file manager was created;
+    * temporary tables are never mapped.
+    * The mapping of a file is extended when a block past its end is requested.
+    * Since the view shares the operating system's copy of the block,
+    * it reflects later writes to the block.
+    * @param blk a reference to a disk block
+    * @return a view of the block, or null
+    */
+   ByteBuffer mappedBlock(Block blk) {
+      String filename = blk.fileName();
+      if (!mmapReads || !filename.endsWith(".tbl") || filename.startsWith("temp"))
+         return null;
+      try {
+         OpenFile f = getFile(filename);
+         long pos = (long) blk.number() * blocksize;
+         MappedByteBuffer map = f.map;
+         if (map == null || pos + blocksize > map.capacity()) {
+            if (!f.use())
+               return null;  // the file has just been closed
+            try {
+               map = f.remap(blocksize);
+            }
+            finally {
+               f.release();
+            }
+         }
+         if (map == null || pos + blocksize > map.capacity())
+            return null;
+         ByteBuffer view = map.duplicate();
+         view.position((int) pos);
+         view.limit((int) pos + blocksize);
+         return view.slice();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot map block " + blk);
+      }
+   }
+
    /**
     * Writes the contents of a bytebuffer into a disk block.
+    * Writes are positional, and proceed concurrently
+    * with the other reads and writes of the file.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   public void write(Block blk, ByteBuffer bb) {
       try {
-         bb.rewind();
-         FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         OpenFile f = useFile(blk.fileName());
+         try {
+            write(f, blk.number(), bb);
+         }
+         finally {
+            f.release();
+         }
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
@@ -85,32 +211,160 @@ public class FileMgr {
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * Appends to the same file are serialized by a latch
+    * of that file; they do not block reads, writes,
+    * or appends to other files.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      try {
+         OpenFile f = useFile(filename);
+         try {
+            synchronized (f.appendLatch) {
+               int newblknum = f.size;
+               write(f, newblknum, bb);
+               return new Block(filename, newblknum);
+            }
+         }
+         finally {
+            f.release();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot append to " + filename);
+      }
    }
 
    /**
     * Returns the number of blocks in the specified file.
+    * The size is read from the file system only when the file is opened;
+    * after that it is maintained by the file manager.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
-         FileChannel fc = getFile(filename);
-         return (int)(fc.size() / BLOCK_SIZE);
+         return getFile(filename).size;
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Forces the blocks written to the specified file onto the disk.
+    * Files are not opened in synchronous mode, so a write is
+    * only durable once the file has been forced.
+    * Threads that force the same file at the same time share a single
+    * disk sync: a thread that finds a sync in progress waits for it,
+    * and then syncs again only if it has newer writes to cover.
+    * Temporary files are never forced.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      try {
+         OpenFile f = useFile(filename);
+         try {
+            force(f);
+         }
+         finally {
+            f.release();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot force " + filename);
+      }
+   }
+
+   /**
+    * Forces every open file that has been written since it was last forced.
+    * The recovery manager calls this method after writing a
+    * transaction's buffers and before logging its completion.
+    */
+   public void forceAll() {
+      for (OpenFile f : openFiles.values()) {
+         if (!f.use())
+            continue;  // the file is being renamed or deleted
+         try {
+            force(f);
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot force database files");
+         }
+         finally {
+            f.release();
+         }
+      }
+   }
+
+   /**
+    * Returns the names of the files in the database directory
+    * that begin with the specified prefix.
+    * @param prefix the prefix
+    * @return the names of the matching files
+    */
+   public List<String> fileNames(String prefix) {
+      List<String> result = new ArrayList<String>();
+      for (String filename : dbDirectory.list())
+         if (filename.startsWith(prefix))
+            result.add(filename);
+      return result;
+   }
+
+   /**
+    * Renames a file, replacing any file that has the new name.
+    * The file is closed first if it is open, once the reads and
+    * writes in progress on it have finished, and the rename
+    * is made durable before the method returns.
+    * @param from the current name of the file
+    * @param to the new name of the file
+    */
+   public void rename(String from, String to) {
+      close(from);
+      close(to);
+      if (!new File(dbDirectory, from).renameTo(new File(dbDirectory, to)))
+         throw new RuntimeException("cannot rename " + from + " to " + to);
+      syncDirectory();
+   }
+
+   /**
+    * Deletes a file, closing it first if it is open,
+    * once the reads and writes in progress on it have finished.
+    * @param filename the name of the file
+    */
+   public void delete(String filename) {
+      close(filename);
+      new File(dbDirectory, filename).delete();
+      syncDirectory();
+   }
+
+   /**
+    * Returns the size of the blocks of this database.
+    * @return the number of bytes in a block
+    */
+   public int blockSize() {
+      return blocksize;
+   }
+
+   /**
+    * Returns the number of bytes of a page that its clients may use:
+    * the block size, less the page LSN if the database has one.
+    * @return the usable size of a page
+    */
+   public int usableSize() {
+      return pageLSNs ? blocksize - Page.LSN_SIZE : blocksize;
+   }
+
+   /**
+    * Returns true if the pages of this database end with their LSN.
+    * @return true if the database has page LSNs
+    */
+   public boolean hasPageLSNs() {
+      return pageLSNs;
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -121,22 +375,234 @@ public class FileMgr {
    }
 
    /**
-    * Returns the file channel for the specified filename.
-    * The file channel is stored in a map keyed on the filename.
-    * If the file is not open, then it is opened and the file channel
-    * is added to the map.
+    * Returns the open file for the specified filename.
+    * The open files are stored in a concurrent map keyed on the filename,
+    * so looking up an open file takes no lock.
+    * If the file is not open, then it is opened and added to the map;
+    * if another thread opens it at the same time, one of the two
+    * channels is closed and both threads use the other.
     * @param filename the specified filename
-    * @return the file channel associated with the open file.
+    * @return the open file
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
-      FileChannel fc = openFiles.get(filename);
-      if (fc == null) {
+   private OpenFile getFile(String filename) throws IOException {
+      OpenFile f = openFiles.get(filename);
+      if (f == null) {
          File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+         boolean temp = filename.startsWith("temp");
+         boolean created = !dbTable.exists();
+         RandomAccessFile raf = new RandomAccessFile(dbTable, "rw");
+         f = new OpenFile(raf.getChannel(), blocksize, temp);
+         OpenFile existing = openFiles.putIfAbsent(filename, f);
+         if (existing != null) {
+            raf.close();
+            f = existing;
+         }
+         else if (created && !temp)
+            syncDirectory();  // forcing the file does not make its name durable
+      }
+      return f;
+   }
+
+   /**
+    * Returns the open file for the specified filename, with its latch
+    * held in shared mode, so that the file is not closed while the
+    * caller uses its channel; the caller must release the file.
+    * If the file is closed between the lookup and the latch,
+    * it is looked up again, which reopens it.
+    * @param filename the specified filename
+    * @return the open file
+    * @throws IOException
+    */
+   private OpenFile useFile(String filename) throws IOException {
+      while (true) {
+         OpenFile f = getFile(filename);
+         if (f.use())
+            return f;
+      }
+   }
+
+   /**
+    * Closes the specified file if it is open, after waiting
+    * for the reads and writes in progress on it to finish.
+    */
+   private void close(String filename) {
+      OpenFile f = openFiles.remove(filename);
+      if (f != null) {
+         f.latch.writeLock().lock();
+         try {
+            f.closed = true;
+            f.channel.close();
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot close " + filename);
+         }
+         finally {
+            f.latch.writeLock().unlock();
+         }
+      }
+   }
+
+   /**
+    * Forces the database directory, so that files created,
+    * renamed or deleted survive a crash.
+    * Directories cannot be forced on every platform,
+    * so a failure is ignored.
+    */
+   private void syncDirectory() {
+      try {
+         FileChannel dir = FileChannel.open(dbDirectory.toPath(), StandardOpenOption.READ);
+         try {
+            dir.force(true);
+         }
+         finally {
+            dir.close();
+         }
+      }
+      catch (IOException e) {
+         // best effort
+      }
+   }
+
+   private void force(OpenFile f) throws IOException {
+      long target = f.writes.get();
+      if (f.temp || f.forced >= target)
+         return;
+      synchronized (f.forceLatch) {
+         if (f.forced >= target)
+            return;
+         long covered = f.writes.get();
+         // on POSIX this is fdatasync, which still makes the file length durable
+         f.channel.force(false);
+         f.forced = covered;
+      }
+   }
+
+   private void write(OpenFile f, int blknum, ByteBuffer bb) throws IOException {
+      bb.rewind();
+      long pos = (long) blknum * blocksize;
+      while (bb.hasRemaining())
+         pos += f.channel.write(bb, pos);
+      f.grow(blknum + 1);
+      if (!f.temp)
+         f.writes.incrementAndGet();
+   }
+
+   private int readHeader(File header) {
+      try {
+         DataInputStream in = new DataInputStream(new FileInputStream(header));
+         try {
+            if (in.readInt() != HEADER_MAGIC)
+               throw new RuntimeException("bad database header " + header);
+            int size = checkBlockSize(in.readInt());
+            pageLSNs = in.available() >= INT_SIZE && in.readInt() == FORMAT_PAGE_LSN;
+            return size;
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + header);
+      }
+   }
+
+   private int writeHeader(File header, int size) {
+      checkBlockSize(size);
+      try {
+         FileOutputStream fos = new FileOutputStream(header);
+         try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(HEADER_MAGIC);
+            out.writeInt(size);
+            out.writeInt(FORMAT_PAGE_LSN);
+            out.flush();
+            fos.getFD().sync();
+         }
+         finally {
+            fos.close();
+         }
+         return size;
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + header);
+      }
+   }
+
+   /**
+    * Checks that a block size is supported: either the legacy
+    * size, or a power of two from 4K to 32K.
+    */
+   private static int checkBlockSize(int size) {
+      if (size != LEGACY_BLOCK_SIZE && (size < MIN_BLOCK_SIZE
+            || size > MAX_BLOCK_SIZE || Integer.bitCount(size) != 1))
+         throw new IllegalArgumentException("unsupported block size " + size);
+      return size;
+   }
+
+   /**
+    * An open file of the database: its channel, together with
+    * its length in blocks, the latch that serializes appends,
+    * the count of writes made durable by the last force,
+    * and the latch that keeps the channel open while it is in use.
+    */
+   private static class OpenFile {
+      final FileChannel channel;
+      final boolean temp;
+      final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+      boolean closed = false; // set under the exclusive latch
+      final Object appendLatch = new Object();
+      final Object forceLatch = new Object();
+      final AtomicLong writes = new AtomicLong(); // completed writes
+      volatile long forced = 0; // writes covered by the last force
+      volatile int size;
+      volatile MappedByteBuffer map = null; // a read-only mapping of the first blocks
+
+      OpenFile(FileChannel channel, int blocksize, boolean temp) throws IOException {
+         this.channel = channel;
+         this.temp = temp;
+         size = (int) (channel.size() / blocksize);
+      }
+
+      /**
+       * Takes the latch in shared mode, unless the file has been closed.
+       * @return true if the file is open, and must be released
+       */
+      boolean use() {
+         latch.readLock().lock();
+         if (!closed)
+            return true;
+         latch.readLock().unlock();
+         return false;
+      }
+
+      /**
+       * Releases the shared latch taken by {@link #use()}.
+       */
+      void release() {
+         latch.readLock().unlock();
+      }
+
+      /**
+       * Raises the cached size to the specified number of blocks,
+       * unless it is already larger.
+       */
+      synchronized void grow(int numblocks) {
+         if (numblocks > size)
+            size = numblocks;
+      }
+
+      /**
+       * Maps the current blocks of the file, unless another
+       * thread has already mapped at least as many.
+       * A file too large for a single mapping is mapped only in part.
+       */
+      synchronized MappedByteBuffer remap(int blocksize) throws IOException {
+         long length = Math.min((long) size * blocksize,
+                                (Integer.MAX_VALUE / blocksize) * (long) blocksize);
+         if (length > 0 && (map == null || length > map.capacity()))
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+         return map;
       }
-      return fc;
    }
 }
@@ -6,7 +6,11 @@ import java.nio.charset.Charset;
 
 /**
  * The contents of a disk block in memory.
- * A page is treated as an array of BLOCK_SIZE bytes.
+ * A page is treated as an array of bytes, as large as
+ * a block of the database (see {@link FileMgr#blockSize()}).
+ * The last {@link #LSN_SIZE} bytes of the page hold its page LSN,
+ * the LSN of the latest log record applied to it, so clients
+ * may only use the first {@link FileMgr#usableSize()} bytes.
  * There are methods to get/set values into this array,
  * and to read/write the contents of this array to a disk block.
  * 
@@ -36,14 +40,6 @@ import java.nio.charset.Charset;
  * @author Edward Sciore
  */
 public class Page {
-   /**
-    * The number of bytes in a block.
-    * This value is set unreasonably low, so that it is easier
-    * to create and test databases having a lot of blocks.
-    * A more realistic value would be 4K.
-    */
-   public static final int BLOCK_SIZE = 400;
-   
    /**
     * The size of an integer in bytes.
     * This value is almost certainly 4, but it is
@@ -66,8 +62,15 @@ public class Page {
       return INT_SIZE + (n * (int)bytesPerChar);
    }
    
-   private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
+   /**
+    * The size of the page LSN, in bytes.
+    */
+   public static final int LSN_SIZE = Long.SIZE / Byte.SIZE;
+   
    private FileMgr filemgr = SimpleDB.fileMgr();
+   private ByteBuffer ownContents;
+   private ByteBuffer contents;
+   private boolean shared = false; // true if contents is a view of a mapped file
    
    /**
     * Creates a new page.  Although the constructor takes no arguments,
@@ -81,14 +84,46 @@ public class Page {
     * {@link simpledb.server.SimpleDB#initFileLogAndBufferMgr(String)}
     * is called first.
     */
-   public Page() {}
+   public Page() {
+      this(ByteBuffer.allocateDirect(SimpleDB.fileMgr().blockSize()));
+   }
+   
+   private Page(ByteBuffer contents) {
+      ownContents = contents;
+      this.contents = contents;
+   }
+   
+   /**
+    * Returns a new page holding a copy of the contents of this page.
+    * The copy is kept on the heap, so that it can be
+    * garbage collected like any other object.
+    * @return the copy of the page
+    */
+   public synchronized Page copy() {
+      ByteBuffer src = contents.duplicate();
+      src.clear();
+      ByteBuffer dst = ByteBuffer.allocate(src.capacity());
+      dst.put(src);
+      return new Page(dst);
+   }
    
    /**
     * Populates the page with the contents of the specified disk block. 
+    * If the block's file is memory mapped (see {@link FileMgr#mappedBlock(Block)}),
+    * the page becomes a view of the mapped block and nothing is copied;
+    * the block is copied into the page's own memory when the page is first modified.
     * @param blk a reference to a disk block
     */
    public synchronized void read(Block blk) {
-      filemgr.read(blk, contents);
+      ByteBuffer view = filemgr.mappedBlock(blk);
+      if (view != null) {
+         contents = view;
+         shared = true;
+      }
+      else {
+         unshare(false);
+         filemgr.read(blk, contents);
+      }
    }
    
    /**
@@ -126,6 +161,7 @@ public class Page {
     * @param val the integer to be written to the page
     */
    public synchronized void setInt(int offset, int val) {
+      unshare(true);
       contents.position(offset);
       contents.putInt(val);
    }
@@ -151,9 +187,51 @@ public class Page {
     * @param val the string to be written to the page
     */
    public synchronized void setString(int offset, String val) {
+      unshare(true);
       contents.position(offset);
       byte[] byteval = val.getBytes();
       contents.putInt(byteval.length);
       contents.put(byteval);
    }
+   
+   /**
+    * Returns the page LSN: the LSN of the latest log record
+    * whose change is reflected in the page.
+    * Returns -1 if the database has no page LSNs.
+    * @return the page LSN
+    */
+   public synchronized long getLSN() {
+      if (!filemgr.hasPageLSNs())
+         return -1;
+      return contents.getLong(filemgr.usableSize());
+   }
+   
+   /**
+    * Sets the page LSN.
+    * Nothing is stored if the database has no page LSNs.
+    * @param lsn the LSN of the latest log record applied to the page
+    */
+   public synchronized void setLSN(long lsn) {
+      if (!filemgr.hasPageLSNs())
+         return;
+      unshare(true);
+      contents.putLong(filemgr.usableSize(), lsn);
+   }
+   
+   /**
+    * Makes the page use its own memory again,
+    * if it is currently a view of a mapped block.
+    * @param copy true if the contents of the view must be kept
+    */
+   private void unshare(boolean copy) {
+      if (!shared)
+         return;
+      if (copy) {
+         contents.rewind();
+         ownContents.clear();
+         ownContents.put(contents);
+      }
+      contents = ownContents;
+      shared = false;
+   }
 }
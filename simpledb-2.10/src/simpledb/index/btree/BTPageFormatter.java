@@ -3,6 +3,7 @@ package simpledb.index.btree;
 import static simpledb.file.Page.*;
 import static java.sql.Types.INTEGER;
 import simpledb.file.Page;
+import simpledb.server.SimpleDB;
 import simpledb.buffer.PageFormatter;
 import simpledb.record.TableInfo;
 
@@ -39,7 +40,7 @@ public class BTPageFormatter implements PageFormatter {
       page.setInt(0, flag);
       page.setInt(INT_SIZE, 0);  // #records = 0
       int recsize = ti.recordLength();
-      for (int pos=2*INT_SIZE; pos+recsize<=BLOCK_SIZE; pos += recsize)
+      for (int pos=2*INT_SIZE; pos+recsize<=SimpleDB.fileMgr().usableSize(); pos += recsize)
          makeDefaultRecord(page, pos);
    }
    
@@ -2,7 +2,7 @@ package simpledb.index.btree;
 
 import static java.sql.Types.INTEGER;
 import simpledb.file.Block;
-import simpledb.tx.Transaction;
+import simpledb.tx.*;
 import simpledb.record.*;
 import simpledb.query.*;
 import simpledb.index.Index;
@@ -16,31 +16,39 @@ public class BTreeIndex implements Index {
    private TableInfo dirTi, leafTi;
    private BTreeLeaf leaf = null;
    private Block rootblk;
+   private boolean empty = false; // true if a read-only transaction found no index files
 
    /**
     * Opens a B-tree index for the specified index.
     * The method determines the appropriate files
     * for the leaf and directory records,
     * creating them if they did not exist.
+    * A read-only transaction cannot create them,
+    * and treats the index as empty instead.
     * @param idxname the name of the index
     * @param leafsch the schema of the leaf index records
     * @param tx the calling transaction
     */
    public BTreeIndex(String idxname, Schema leafsch, Transaction tx) {
       this.tx = tx;
-      // deal with the leaves
       String leaftbl = idxname + "leaf";
       leafTi = new TableInfo(leaftbl, leafsch);
-      if (tx.size(leafTi.fileName()) == 0)
-         tx.append(leafTi.fileName(), new BTPageFormatter(leafTi, -1));
-
-      // deal with the directory
       Schema dirsch = new Schema();
       dirsch.add("block",   leafsch);
       dirsch.add("dataval", leafsch);
       String dirtbl = idxname + "dir";
       dirTi = new TableInfo(dirtbl, dirsch);
       rootblk = new Block(dirTi.fileName(), 0);
+      if (tx.isReadOnly() && (tx.size(leafTi.fileName()) == 0 || tx.size(dirTi.fileName()) == 0)) {
+         empty = true;
+         return;
+      }
+
+      // deal with the leaves
+      if (tx.size(leafTi.fileName()) == 0)
+         tx.append(leafTi.fileName(), new BTPageFormatter(leafTi, -1));
+
+      // deal with the directory
       if (tx.size(dirTi.fileName()) == 0)
          // create new root block
          tx.append(dirTi.fileName(), new BTPageFormatter(dirTi, 0));
@@ -68,6 +76,10 @@ public class BTreeIndex implements Index {
     */
    public void beforeFirst(Constant searchkey) {
       close();
+      if (empty) {
+         leaf = null;
+         return;
+      }
       BTreeDir root = new BTreeDir(rootblk, dirTi, tx);
       int blknum = root.search(searchkey);
       root.close();
@@ -82,6 +94,8 @@ public class BTreeIndex implements Index {
     * @see simpledb.index.Index#next()
     */
    public boolean next() {
+      if (empty)
+         return false;
       return leaf.next();
    }
 
@@ -105,6 +119,8 @@ public class BTreeIndex implements Index {
     * @see simpledb.index.Index#insert(simpledb.query.Constant, simpledb.record.RID)
     */
    public void insert(Constant dataval, RID datarid) {
+      if (empty)
+         throw new ReadOnlyException(leafTi.fileName());
       beforeFirst(dataval);
       DirEntry e = leaf.insert(datarid);
       leaf.close();
@@ -125,6 +141,8 @@ public class BTreeIndex implements Index {
     * @see simpledb.index.Index#delete(simpledb.query.Constant, simpledb.record.RID)
     */
    public void delete(Constant dataval, RID datarid) {
+      if (empty)
+         throw new ReadOnlyException(leafTi.fileName());
       beforeFirst(dataval);
       leaf.delete(datarid);
       leaf.close();
@@ -151,4 +169,19 @@ public class BTreeIndex implements Index {
    public static int searchCost(int numblocks, int rpb) {
       return 1 + (int)(Math.log(numblocks) / Math.log(rpb));
    }
+
+   /**
+    * Notes that the specified transaction creates the
+    * leaf and directory files of the specified index.
+    * @param idxname the name of the index
+    * @param leafsch the schema of the leaf index records
+    * @param tx the creating transaction
+    */
+   public static void create(String idxname, Schema leafsch, Transaction tx) {
+      tx.create(new TableInfo(idxname + "leaf", leafsch).fileName());
+      Schema dirsch = new Schema();
+      dirsch.add("block",   leafsch);
+      dirsch.add("dataval", leafsch);
+      tx.create(new TableInfo(idxname + "dir", dirsch).fileName());
+   }
 }
@@ -124,4 +124,18 @@ public class HashIndex implements Index {
 	public static int searchCost(int numblocks, int rpb){
 		return numblocks / HashIndex.NUM_BUCKETS;
 	}
+
+	/**
+	 * Notes that the specified transaction creates the
+	 * bucket files of the specified index.
+	 * @param idxname the name of the index
+	 * @param sch the schema of the index records
+	 * @param tx the creating transaction
+	 */
+	public static void create(String idxname, Schema sch, Transaction tx) {
+		for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+			TableInfo ti = new TableInfo(idxname + bucket, sch);
+			tx.create(ti.fileName());
+		}
+	}
 }
@@ -1,7 +1,6 @@
 package simpledb.log;
 
-import static simpledb.file.Page.*;
-import simpledb.file.Page;
+import java.nio.ByteBuffer;
 
 /**
  * A class that provides the ability to read the values of
@@ -15,40 +14,87 @@ import simpledb.file.Page;
  * @author Edward Sciore
  */
 public class BasicLogRecord {
-   private Page pg;
+   private ByteBuffer bb;
    private int pos;
+   private long lsn;
    
    /**
-    * A log record located at the specified position of the specified page.
-    * This constructor is called exclusively by
-    * {@link LogIterator#next()}.
-    * @param pg the page containing the log record
-    * @param pos the position of the log record 
+    * A log record located at the specified position of the specified buffer.
+    * This constructor is called by the log iterators.
+    * @param bb the buffer containing the log record
+    * @param pos the position of the log record's values
+    * @param lsn the LSN of the log record
     */
-   public BasicLogRecord(Page pg, int pos) {
-      this.pg = pg;
+   public BasicLogRecord(ByteBuffer bb, int pos, long lsn) {
+      this.bb = bb;
       this.pos = pos;
+      this.lsn = lsn;
+   }
+
+   /**
+    * Returns the LSN of the log record.
+    * @return the LSN of the log record
+    */
+   public long lsn() {
+      return lsn;
    }
    
    /**
     * Returns the next value of the current log record, 
     * assuming it is an integer.
     * @return the next value of the current log record
+    * @see LogWriter#putInt(int)
     */
    public int nextInt() {
-      int result = pg.getInt(pos);
-      pos += INT_SIZE;
-      return result;
+      return (int) nextLong();
+   }
+   
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is a long integer.
+    * @return the next value of the current log record
+    * @see LogWriter#putLong(long)
+    */
+   public long nextLong() {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = bb.get(pos++);
+         v |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while (b < 0);
+      return (v >>> 1) ^ -(v & 1);
    }
    
    /**
     * Returns the next value of the current log record, 
     * assuming it is a string.
     * @return the next value of the current log record
+    * @see LogWriter#putString(String)
     */
    public String nextString() {
-      String result = pg.getString(pos);
-      pos += STR_SIZE(result.length());
-      return result;
+      int len = nextInt();
+      int end = pos + len;
+      StringBuilder sb = new StringBuilder(end - pos);
+      while (pos < end) {
+         int b = bb.get(pos++) & 0xFF;
+         if (b < 0x80)
+            sb.append((char) b);
+         else if (b < 0xE0)
+            sb.append((char) (((b & 0x1F) << 6) | cont()));
+         else if (b < 0xF0)
+            sb.append((char) (((b & 0x0F) << 12) | (cont() << 6) | cont()));
+         else
+            sb.appendCodePoint(((b & 0x07) << 18) | (cont() << 12) | (cont() << 6) | cont());
+      }
+      return sb.toString();
+   }
+   
+   /**
+    * Returns the payload of the next continuation byte of a UTF-8 sequence.
+    */
+   private int cont() {
+      return bb.get(pos++) & 0x3F;
    }
 }
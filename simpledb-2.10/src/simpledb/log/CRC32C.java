@@ -0,0 +1,47 @@
+package simpledb.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC-32C (Castagnoli) checksum, which the log stores with
+ * each record so that a torn or partially written record is detected.
+ * The checksum is computed a byte at a time from a table.
+ */
+class CRC32C {
+   private static final int POLY = 0x82F63B78; // the reversed Castagnoli polynomial
+   private static final int[] TABLE = new int[256];
+
+   static {
+      for (int i=0; i<256; i++) {
+         int crc = i;
+         for (int j=0; j<8; j++)
+            crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLY : 0);
+         TABLE[i] = crc;
+      }
+   }
+
+   private CRC32C() {}
+
+   /**
+    * Returns the checksum of the specified bytes of a buffer.
+    * The buffer's position and limit are not used or changed.
+    * @param bb the buffer
+    * @param from the position of the first byte
+    * @param to the position following the last byte
+    * @return the checksum
+    */
+   static int compute(ByteBuffer bb, int from, int to) {
+      int crc = 0xFFFFFFFF;
+      if (bb.hasArray()) {
+         byte[] a = bb.array();
+         int off = bb.arrayOffset();
+         for (int i=from + off; i<to + off; i++)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ a[i]) & 0xFF];
+      }
+      else {
+         for (int i=from; i<to; i++)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ bb.get(i)) & 0xFF];
+      }
+      return ~crc;
+   }
+}
@@ -0,0 +1,156 @@
+package simpledb.log;
+
+import static simpledb.file.Page.INT_SIZE;
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dictionary of the file names that appear in the log.
+ * Log records identify a file by a small integer id instead of its name.
+ * Ids are assigned in order, the first time a file is logged, and are
+ * never reused, so the dictionary stays valid as the log is recycled.
+ * The names are stored in order in the blocks of the dictionary file,
+ * each as the length of its UTF-8 encoding, a CRC-32C of the encoding,
+ * and the encoding itself; a name that does not fit in the rest of a
+ * block starts the next one, and a length of 0 ends the names in a block.
+ * A new name is written into the last block, which is rewritten
+ * without being forced; the log manager calls {@link #force()} before
+ * it writes the log records that use the name, so every id in the
+ * log can be resolved after a crash. Rewriting the block leaves the
+ * earlier names in it unchanged, even if the write is torn; loading
+ * stops at the first invalid name, and erases the blocks after it.
+ */
+class FileDictionary {
+   private static final int ENTRY_HEADER = 2 * INT_SIZE;
+   private String filename;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private Map<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+   // the following fields are guarded by this
+   private List<String> names = new ArrayList<String>();
+   private ByteBuffer page = ByteBuffer.allocate(blocksize);  // the last block
+   private int current = 0;      // the number of the last block
+   private int end = 0;          // the end of the names in the last block
+   private boolean unforced = false;  // true if a name has been written but not forced
+
+   /**
+    * Loads the dictionary from the specified file.
+    * @param filename the name of the dictionary file
+    */
+   FileDictionary(String filename) {
+      this.filename = filename;
+      int size = SimpleDB.fileMgr().size(filename);
+      for (int b=0; b<size; b++) {
+         SimpleDB.fileMgr().read(new Block(filename, b), page);
+         current = b;
+         if (!loadNames()) {
+            eraseFollowing(size);
+            break;
+         }
+      }
+      Arrays.fill(page.array(), end, blocksize, (byte) 0);
+   }
+
+   /**
+    * Returns the id of the specified file,
+    * adding the file to the dictionary if necessary.
+    * @param name the name of the file
+    * @return the id of the file
+    */
+   int id(String name) {
+      Integer id = ids.get(name);
+      return (id != null) ? id : add(name);
+   }
+
+   /**
+    * Returns the name of the file having the specified id.
+    * @param id the id of a file
+    * @return the name of the file
+    */
+   synchronized String name(int id) {
+      if (id < 0 || id >= names.size())
+         throw new IllegalArgumentException("unknown file id " + id);
+      return names.get(id);
+   }
+
+   /**
+    * Forces the names added since the last call to disk.
+    * The log manager calls this method before writing log records,
+    * which may use the ids of the new names.
+    */
+   synchronized void force() {
+      if (!unforced)
+         return;
+      SimpleDB.fileMgr().force(filename);
+      unforced = false;
+   }
+
+   /**
+    * Writes a new name into the last block of the dictionary.
+    */
+   private synchronized int add(String name) {
+      Integer id = ids.get(name);
+      if (id != null)
+         return id;
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      if (ENTRY_HEADER + bytes.length > blocksize)
+         throw new IllegalArgumentException("file name too long for the log: " + name);
+      if (end + ENTRY_HEADER + bytes.length > blocksize) {
+         current++;
+         end = 0;
+         Arrays.fill(page.array(), (byte) 0);
+      }
+      page.position(end + ENTRY_HEADER);
+      page.put(bytes);
+      page.putInt(end, bytes.length);
+      page.putInt(end + INT_SIZE, CRC32C.compute(page, end + ENTRY_HEADER, end + ENTRY_HEADER + bytes.length));
+      end += ENTRY_HEADER + bytes.length;
+      SimpleDB.fileMgr().write(new Block(filename, current), page);
+      unforced = true;
+      int newid = names.size();
+      names.add(name);
+      ids.put(name, newid);
+      return newid;
+   }
+
+   /**
+    * Loads the names in the page, and sets the end of the names.
+    * @return false if the page holds an invalid name
+    */
+   private boolean loadNames() {
+      end = 0;
+      while (end + ENTRY_HEADER <= blocksize) {
+         int len = page.getInt(end);
+         if (len == 0)
+            return true;
+         if (len < 0 || end + ENTRY_HEADER + len > blocksize
+             || page.getInt(end + INT_SIZE) != CRC32C.compute(page, end + ENTRY_HEADER, end + ENTRY_HEADER + len))
+            return false;
+         byte[] bytes = new byte[len];
+         page.position(end + ENTRY_HEADER);
+         page.get(bytes);
+         String name = new String(bytes, StandardCharsets.UTF_8);
+         ids.put(name, names.size());
+         names.add(name);
+         end += ENTRY_HEADER + len;
+      }
+      return true;
+   }
+
+   /**
+    * Erases the blocks that follow an invalid name.
+    * They were written before the crash that tore the name,
+    * and must not be taken for part of the dictionary
+    * once the block of the name has been rewritten.
+    */
+   private void eraseFollowing(int size) {
+      ByteBuffer empty = ByteBuffer.allocate(blocksize);
+      for (int b=current+1; b<size; b++)
+         SimpleDB.fileMgr().write(new Block(filename, b), empty);
+      if (current + 1 < size)
+         SimpleDB.fileMgr().force(filename);
+   }
+}
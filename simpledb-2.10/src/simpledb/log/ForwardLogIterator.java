@@ -0,0 +1,88 @@
+package simpledb.log;
+
+import simpledb.server.SimpleDB;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log in the order they were written,
+ * as the redo pass of recovery needs.
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogReader reader;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private long start, end;
+   private int blknum;
+   private ByteBuffer bb;
+   private List<Integer> positions = Collections.emptyList();
+   private int current = 0;
+
+   /**
+    * Creates an iterator for the records of the log
+    * whose LSNs lie in the specified range.
+    * This constructor is called exclusively by
+    * {@link LogMgr#forwardIterator(long)}.
+    * @param logMgr the log manager
+    * @param start the LSN of the first record to be returned
+    * @param end the LSN following the last record to be returned
+    */
+   ForwardLogIterator(LogMgr logMgr, long start, long end) {
+      reader = new LogReader(logMgr, blocksize);
+      this.start = start;
+      this.end = end;
+      blknum = Math.max((int) (start / blocksize), logMgr.firstBlock()) - 1;
+   }
+
+   /**
+    * Determines if there is a later log record.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (current == positions.size()) {
+         if (!moveToBlock(blknum + 1))
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Moves to the next log record in the order they were written.
+    * @return the next later log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new java.util.NoSuchElementException();
+      int pos = positions.get(current);
+      current++;
+      return new BasicLogRecord(bb, pos + LogMgr.RECORD_HEADER, (long) blknum * blocksize + pos);
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Moves to the specified log block,
+    * and positions it before its first record in the range.
+    * @return false if the block is past the end of the log
+    */
+   private boolean moveToBlock(int b) {
+      if ((long) b * blocksize >= end || (bb = reader.block(b)) == null) {
+         end = 0;  // the log does not go any further
+         return false;
+      }
+      blknum = b;
+      positions = LogMgr.recordPositions(bb, blocksize);
+      current = 0;
+      while (current < positions.size() && (long) b * blocksize + positions.get(current) < start)
+         current++;
+      int last = positions.size();
+      while (last > current && (long) b * blocksize + positions.get(last - 1) >= end)
+         last--;
+      positions = positions.subList(0, last);
+      return true;
+   }
+}
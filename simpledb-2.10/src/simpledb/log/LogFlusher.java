@@ -0,0 +1,40 @@
+package simpledb.log;
+
+/**
+ * The group commit thread of the log manager.
+ * The flusher sleeps until some thread is waiting for log records
+ * to reach the disk, and then writes and forces the log once for
+ * all the records appended so far.
+ * Threads that ask for a flush while a force is in progress
+ * are served together by the next round, so a burst of commits
+ * costs a few forces rather than one force per commit.
+ * The flusher stops if a round fails, since a failed round is never retried.
+ */
+class LogFlusher implements Runnable {
+   private LogMgr logMgr;
+   
+   /**
+    * Creates a flusher for the specified log manager.
+    * @param logMgr the log manager
+    */
+   LogFlusher(LogMgr logMgr) {
+      this.logMgr = logMgr;
+   }
+   
+   public void run() {
+      while (true) {
+         try {
+            logMgr.awaitFlushRequest();
+            logMgr.flushRound();
+         }
+         catch (InterruptedException e) {
+            return;
+         }
+         catch (RuntimeException e) {
+            // the log manager has recorded the failure, and
+            // reports it to every thread that waits for the log
+            return;
+         }
+      }
+   }
+}
@@ -1,41 +1,56 @@
 package simpledb.log;
 
-import static simpledb.file.Page.INT_SIZE;
-import simpledb.file.*;
+import simpledb.server.SimpleDB;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A class that provides the ability to move through the
  * records of the log file in reverse order.
- * 
+ * The records of a block are chained forwards by their lengths,
+ * so the iterator finds the records of each block it reads,
+ * and then returns them from last to first.
+ *
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
-   private Page pg = new Page();
-   private int currentrec;
-   
+   private LogReader reader;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private long end;
+   private int blknum;
+   private ByteBuffer bb;
+   private List<Integer> positions;
+   private int current;
+
    /**
-    * Creates an iterator for the records in the log file,
-    * positioned after the last log record.
+    * Creates an iterator for the records in the log,
+    * positioned after the last log record below the specified LSN.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logMgr the log manager
+    * @param end the LSN following the last record to be returned
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
-      currentrec = pg.getInt(LogMgr.LAST_POS);
+   LogIterator(LogMgr logMgr, long end) {
+      reader = new LogReader(logMgr, blocksize);
+      this.end = end;
+      blknum = (int) ((end - 1) / blocksize) + 1;
+      current = 0;
    }
-   
+
    /**
     * Determines if the current log record
     * is the earliest record in the log file.
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      while (current == 0) {
+         if (blknum == 0 || !moveToBlock(blknum - 1))
+            return false;
+      }
+      return true;
    }
-   
+
    /**
     * Moves to the next log record in reverse order.
     * If the current log record is the earliest in its block,
@@ -44,23 +59,33 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * @return the next earliest log record
     */
    public BasicLogRecord next() {
-      if (currentrec == 0) 
-         moveToNextBlock();
-      currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      if (!hasNext())
+         throw new java.util.NoSuchElementException();
+      current--;
+      int pos = positions.get(current);
+      return new BasicLogRecord(bb, pos + LogMgr.RECORD_HEADER, (long) blknum * blocksize + pos);
    }
-   
+
    public void remove() {
       throw new UnsupportedOperationException();
    }
-   
+
    /**
-    * Moves to the next log block in reverse order,
-    * and positions it after the last record in that block.
+    * Moves to the specified log block,
+    * and positions it after its last record.
+    * @return false if the block is not a valid block of the log
     */
-   private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
-      currentrec = pg.getInt(LogMgr.LAST_POS);
+   private boolean moveToBlock(int b) {
+      blknum = b;
+      bb = reader.block(b);
+      if (bb == null) {
+         blknum = 0;  // the log does not go back any further
+         return false;
+      }
+      positions = LogMgr.recordPositions(bb, blocksize);
+      current = positions.size();
+      while (current > 0 && (long) b * blocksize + positions.get(current - 1) >= end)
+         current--;
+      return true;
    }
 }
@@ -2,35 +2,121 @@ package simpledb.log;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
-import static simpledb.file.Page.*;
+import static simpledb.file.Page.INT_SIZE;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The low-level log manager.
  * This log manager is responsible for writing log records
  * into a log file.
- * A log record can be any sequence of integer and string values.
+ * A log record can be any sequence of integer and string values,
+ * which are encoded compactly by {@link LogWriter}.
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * <p>
+ * The log is a sequence of blocks, stored in segment files of
+ * {@link SimpleDB#LOG_SEGMENT_BLOCKS} blocks each; segment <i>n</i>
+ * is the file whose name is the log file name followed by ".<i>n</i>".
+ * Each block begins with its
+ * own block number, followed by the log records stored in it;
+ * a record consists of its length, a CRC-32C of its values, and then
+ * its values, and a length of 0 marks the end of the records in the block.
+ * Records do not cross block boundaries.
+ * A record whose checksum does not match was torn by a crash while its
+ * block was being written; the log is taken to end before it.
+ * Files are identified in log records by ids from a
+ * {@link FileDictionary}, which is kept in the file whose name is
+ * the log file name followed by ".files".
+ * The LSN of a record is its byte offset in the log,
+ * so LSNs increase with every record that is appended.
+ * <p>
+ * The log can be read backwards from its end, as undo needs,
+ * or forwards from any LSN, as redo needs.
+ * Once a checkpoint makes the records before it unnecessary,
+ * the segments that hold only those records are
+ * {@link #truncate(long) recycled}: a few are renamed to become
+ * the next segments of the log, so that their blocks are overwritten
+ * instead of allocated again, and the rest are deleted.
+ * Blocks that still hold the contents of a recycled segment
+ * do not begin with their own number, so they are never taken
+ * for part of the log.
+ * <p>
+ * The most recent blocks of the log are kept in a ring of pages,
+ * which the flusher writes to disk; appending threads wait for
+ * the disk only if the whole ring is waiting to be written.
+ * A record is appended in two steps, neither of which takes a lock.
+ * The thread first {@link #reserve(int) reserves} the space for the
+ * record, by atomically advancing the tail of the log past it;
+ * it then writes the values of the record with a {@link LogWriter},
+ * in parallel with the other appending threads, and publishes it.
+ * Records are published in LSN order, so the published part of the
+ * log, which is all that the flusher writes, never has holes.
+ * <p>
+ * The log is forced by group commit. A thread that needs its records
+ * on disk does not write and force the log itself; it registers
+ * the LSN it needs and waits, and the {@link LogFlusher} thread
+ * writes and forces everything appended so far, which releases every
+ * thread whose records were covered.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
    /**
-    * The location where the pointer to the last integer in the page is.
-    * A value of 0 means that the pointer is the first value in the page.
+    * The number of pages in the ring of log buffers.
     */
-   public static final int LAST_POS = 0;
+   public static final int LOG_BUFFERS = 8;
+
+   static final int CRC_SIZE = INT_SIZE;
+   static final int RECORD_HEADER = INT_SIZE + CRC_SIZE; // the length and checksum of a record
+
+   private static final int HEADER_SIZE = INT_SIZE; // the block number
+   private static final int SPARE_SEGMENTS = 2; // recycled segments kept ahead of the log
 
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
-   private int currentpos;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private int segblocks;
+   private volatile int firstSegment; // the oldest segment of the log
+   private int lastSegment;           // the newest segment file; guarded by roundLatch
+   private FileDictionary files;
+   private ByteBuffer ring = ByteBuffer.allocate(LOG_BUFFERS * blocksize);
+   private ByteBuffer[] slots = new ByteBuffer[LOG_BUFFERS]; // a view of each page of the ring
+   private final AtomicLong tail;   // the LSN of the next byte to be reserved
+   private final AtomicLong filled; // every record below this LSN has been published
+   private volatile int firstUnwritten; // the oldest block whose final contents are not on disk
+   private final Object publishLatch = new Object();
+   private volatile int publishWaiters = 0; // threads waiting to publish; changed under publishLatch
+   private final ThreadLocal<LogWriter> writers = new ThreadLocal<LogWriter>() {
+      protected LogWriter initialValue() {
+         return new LogWriter(LogMgr.this, ring);
+      }
+   };
+
+   // The flusher's copy of the last page it writes, which may still be filling.
+   private ByteBuffer lastPage = ByteBuffer.allocateDirect(blocksize);
+   private byte[] zeros = new byte[blocksize];
+
+   // The LSN that waiting threads need to be on disk, and the LSN below
+   // which every record is on disk; both are updated under commitQueue.
+   private final Object commitQueue = new Object();
+   private long requested = 0;
+   private volatile long flushedLSN;
+   private final Object roundLatch = new Object(); // serializes flush rounds
+   private volatile boolean flusherRunning = false;
+   private volatile RuntimeException failure = null; // why a flush round failed; null if none has
 
    /**
-    * Creates the manager for the specified log file.
-    * If the log file does not yet exist, it is created
+    * Creates the manager for the specified log.
+    * The segments of the log are found in the database directory,
+    * and the end of the log is the last valid block of the newest
+    * segment that begins with a valid block.
+    * If the log does not yet exist, its first segment is created
     * with an empty first block.
+    * A database whose log is still a single non-empty file under
+    * the log's own name, as written before logs were segmented,
+    * is refused: that log may hold the undo information of
+    * unfinished transactions, which the segmented log cannot read.
     * This constructor depends on a {@link FileMgr} object
     * that it gets from the method
     * {@link simpledb.server.SimpleDB#fileMgr()}.
@@ -38,135 +124,565 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * Thus this constructor cannot be called until
     * {@link simpledb.server.SimpleDB#initFileMgr(String)}
     * is called first.
-    * @param logfile the name of the log file
+    * @param logfile the name of the log, which prefixes the names of its segments
     */
    public LogMgr(String logfile) {
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      if (SimpleDB.fileMgr().fileNames(logfile).contains(logfile)
+            && SimpleDB.fileMgr().size(logfile) > 0)
+         throw new RuntimeException("the database has an old single-file log, " + logfile
+               + "; recover the database with the previous version of SimpleDB,"
+               + " shut it down cleanly, and then delete the file");
+      files = new FileDictionary(logfile + ".files");
+      int n = Math.max(SimpleDB.LOG_SEGMENT_BLOCKS, LogReader.READ_BLOCKS);
+      segblocks = n - n % LogReader.READ_BLOCKS;
+      for (int i=0; i<LOG_BUFFERS; i++) {
+         ByteBuffer view = ring.duplicate();
+         view.position(i * blocksize);
+         view.limit((i + 1) * blocksize);
+         slots[i] = view.slice();
+      }
+      int first = Integer.MAX_VALUE, last = -1;
+      for (String filename : SimpleDB.fileMgr().fileNames(logfile + ".")) {
+         int seg = segmentNumber(filename);
+         if (seg >= 0) {
+            first = Math.min(first, seg);
+            last = Math.max(last, seg);
+         }
+      }
+      if (last < 0)
+         first = last = 0;
+      firstSegment = first;
+      lastSegment = last;
+
+      // skip the spare segments, then read forward to the first invalid block
+      LogReader reader = new LogReader(this, blocksize);
+      int seg = last;
+      while (seg > first && reader.block(seg * segblocks) == null)
+         seg--;
+      int blknum = seg * segblocks;
+      ByteBuffer contents = reader.block(blknum);
+      long end;
+      if (contents == null) {
+         slot(blknum).putInt(0, blknum);
+         end = (long) blknum * blocksize + HEADER_SIZE;
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
-         currentpos = getLastRecordPosition() + INT_SIZE;
+         while (endsCleanly(contents) && (blknum + 1) % segblocks != 0) {
+            ByteBuffer next = reader.block(blknum + 1);
+            if (next == null)
+               break;
+            blknum++;
+            contents = next;
+         }
+         if (!endsCleanly(contents))
+            invalidateFollowing(reader, blknum);
+         contents = reader.block(blknum);
+         ByteBuffer page = slot(blknum);
+         page.clear();
+         page.put(contents);
+         end = (long) blknum * blocksize + endOfRecords(page, blocksize);
       }
+      tail = new AtomicLong(end);
+      filled = new AtomicLong(end);
+      firstUnwritten = blknum;
+      flushedLSN = end;
    }
 
    /**
-    * Ensures that the log records corresponding to the
-    * specified LSN has been written to disk.
+    * Ensures that the log record having the specified LSN
+    * has been written to disk.
     * All earlier log records will also be written to disk.
+    * Nothing needs to be done if the LSN is below the flushed LSN.
+    * Otherwise the calling thread waits until a flush round
+    * covers the record; if the flusher thread is not running,
+    * the calling thread performs the round itself.
+    * If a flush round has failed, the record may never reach the disk,
+    * and the method throws an exception.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public void flush(long lsn) {
+      if (lsn < flushedLSN)
+         return;
+      checkFailure();
+      if (!flusherRunning) {
+         synchronized (roundLatch) {
+            if (lsn >= flushedLSN)
+               flushRound();
+         }
+         return;
+      }
+      boolean interrupted = false;
+      synchronized (commitQueue) {
+         request(lsn + 1);
+         while (lsn >= flushedLSN && failure == null) {
+            try {
+               commitQueue.wait();
+            }
+            catch (InterruptedException e) {
+               // the record must be on disk before the caller continues
+               interrupted = true;
+            }
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+      if (lsn >= flushedLSN)
+         checkFailure();
+   }
+
+   /**
+    * Returns the LSN below which every log record is on disk.
+    * @return the flushed LSN
+    */
+   public long flushedLSN() {
+      return flushedLSN;
+   }
+
+   /**
+    * Returns the LSN of the end of the log: every record
+    * appended from now on will have at least this LSN.
+    * @return the end of the log
+    */
+   public long endLSN() {
+      return tail.get();
+   }
+
+   /**
+    * Returns the largest number of bytes of values that a
+    * single log record can hold, since records do not cross blocks.
+    * @return the maximum size of a record's values
+    */
+   public int maxRecordSize() {
+      return blocksize - HEADER_SIZE - RECORD_HEADER;
+   }
+
+   /**
+    * Returns the id that identifies the specified file in log records,
+    * assigning it a new id if it has never been logged.
+    * @param filename the name of a file
+    * @return the id of the file
+    */
+   public int fileId(String filename) {
+      return files.id(filename);
+   }
+
+   /**
+    * Returns the name of the file with the specified id.
+    * @param id the id of a file in a log record
+    * @return the name of the file
+    */
+   public String fileName(int id) {
+      return files.name(id);
+   }
+
+   /**
+    * Starts the thread that writes and forces the log
+    * on behalf of the threads waiting in {@link #flush(long) flush}.
+    */
+   public void startFlusher() {
+      Thread t = new Thread(new LogFlusher(this), "simpledb-log-flusher");
+      t.setDaemon(true);
+      flusherRunning = true;
+      t.start();
    }
 
    /**
     * Returns an iterator for the log records,
     * which will be returned in reverse order starting with the most recent.
+    * The records published so far are flushed first.
     * @see java.lang.Iterable#iterator()
     */
-   public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+   public Iterator<BasicLogRecord> iterator() {
+      long end = filled.get();
+      flush(end - 1);
+      return new LogIterator(this, end);
+   }
+
+   /**
+    * Returns a reader for individual log records,
+    * such as the records that a rollback reaches
+    * by following a transaction's chain of LSNs.
+    * @return a new reader
+    */
+   public LogReader reader() {
+      return new LogReader(this, blocksize);
+   }
+
+   /**
+    * Returns an iterator for the log records whose LSNs are
+    * at least the specified LSN, which will be returned
+    * in the order they were written.
+    * The records published so far are flushed first,
+    * and the iterator stops at the last of them.
+    * @param lsn the LSN to start from
+    * @return an iterator over the later log records
+    */
+   public Iterator<BasicLogRecord> forwardIterator(long lsn) {
+      long end = filled.get();
+      flush(end - 1);
+      return new ForwardLogIterator(this, lsn, end);
+   }
+
+   /**
+    * Recycles the segments of the log that hold only records
+    * below the specified LSN, which the caller no longer needs.
+    * Up to {@value #SPARE_SEGMENTS} segments past the end of the log
+    * are kept for reuse; the other segments are deleted.
+    * The recycling is done between flush rounds, so the flusher
+    * never writes to a segment file that is being renamed.
+    * @param lsn the LSN of the oldest record still needed
+    */
+   public void truncate(long lsn) {
+      int keep = (int) (lsn / blocksize) / segblocks;
+      synchronized (roundLatch) {
+         int current = (int) (tail.get() / blocksize) / segblocks;
+         while (firstSegment < keep) {
+            String filename = segmentName(firstSegment);
+            firstSegment++;
+            if (lastSegment - current < SPARE_SEGMENTS) {
+               lastSegment++;
+               SimpleDB.fileMgr().rename(filename, segmentName(lastSegment));
+            }
+            else
+               SimpleDB.fileMgr().delete(filename);
+         }
+      }
+   }
+
+   /**
+    * Reserves space in the log for a record whose values
+    * take up the specified number of bytes.
+    * The space is claimed by advancing the tail of the log with
+    * a compare-and-set; if the record does not fit in the current
+    * block, the rest of the block is claimed as well, and the record
+    * starts the next block.
+    * If every page of the ring is waiting to be written, the calling
+    * thread waits for the flusher (or writes the ring itself,
+    * if the flusher is not running).
+    * No space is reserved once a flush round has failed.
+    * The caller must write the values of the record
+    * with the returned writer, and then call its
+    * {@link LogWriter#end() end} method.
+    * @param size the size of the record's values, in bytes
+    * @return the calling thread's writer, positioned at the record
+    */
+   public LogWriter reserve(int size) {
+      int recsize = RECORD_HEADER + size;
+      if (size <= 0)
+         throw new IllegalArgumentException("log record is empty");
+      checkFailure();
+      if (HEADER_SIZE + recsize > blocksize)
+         throw new IllegalArgumentException("log record does not fit in a block");
+      while (true) {
+         long t = tail.get();
+         int off = (int) (t % blocksize);
+         long start = t;
+         if (off == 0 || off + recsize > blocksize)
+            start = t - off + (off == 0 ? 0 : blocksize) + HEADER_SIZE;
+         int blknum = (int) (start / blocksize);
+         if (blknum - firstUnwritten >= LOG_BUFFERS) {
+            awaitRingSpace(blknum);
+            continue;
+         }
+         if (!tail.compareAndSet(t, start + recsize))
+            continue;
+         if (start != t) {
+            // end the records of the previous block, and start the new one
+            if (off != 0 && off + INT_SIZE <= blocksize)
+               ring.putInt(ringPos(t), 0);
+            ring.putInt(ringPos(start - HEADER_SIZE), blknum);
+         }
+         int pos = ringPos(start);
+         ring.putInt(pos, size);
+         LogWriter w = writers.get();
+         w.begin(t, start, pos + RECORD_HEADER, size);
+         return w;
+      }
+   }
+
+   /**
+    * Publishes a record whose values have been written.
+    * Records are published in the order of their reservations,
+    * so the method first waits for the reservation that
+    * precedes this one to be published.
+    * A thread that has to wait blocks on the publish latch, and
+    * the thread that publishes wakes the waiters if there are any;
+    * since each side checks the other's variable after writing its own,
+    * a waiter cannot miss the publication it waits for.
+    * @param claimed the first byte claimed by the reservation
+    * @param end the LSN following the record
+    */
+   void publish(long claimed, long end) {
+      if (!filled.compareAndSet(claimed, end)) {
+         boolean interrupted = false;
+         synchronized (publishLatch) {
+            publishWaiters++;
+            while (!filled.compareAndSet(claimed, end)) {
+               try {
+                  publishLatch.wait();
+               }
+               catch (InterruptedException e) {
+                  // the record must be published, or no later record could be
+                  interrupted = true;
+               }
+            }
+            publishWaiters--;
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }
+      if (publishWaiters > 0) {
+         synchronized (publishLatch) {
+            publishLatch.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Waits until some thread needs records that are not yet known to be on disk.
+    * Called by the flusher thread between rounds.
+    * @throws InterruptedException if the thread is interrupted while waiting
+    */
+   void awaitFlushRequest() throws InterruptedException {
+      synchronized (commitQueue) {
+         while (requested <= flushedLSN && failure == null)
+            commitQueue.wait();
+      }
    }
 
    /**
-    * Appends a log record to the file.
-    * The record contains an arbitrary array of strings and integers.
-    * The method also writes an integer to the end of each log record whose value
-    * is the offset of the corresponding integer for the previous log record.
-    * These integers allow log records to be read in reverse order.
-    * @param rec the list of values
-    * @return the LSN of the final value
+    * Forces the new names of the file dictionary, writes the
+    * pages of the ring that hold published records
+    * and have not been written, forces the log file,
+    * and releases the threads waiting for those records.
+    * Full pages do not change until they have been written,
+    * so they are written straight from the ring; the last page
+    * may still be filling, so the published part of it is copied first.
+    * Threads keep appending records during the round,
+    * and those records are covered by the next round.
+    * <p>
+    * A round that fails is not retried: a write or force that failed
+    * may have lost pages that the operating system had accepted, so a
+    * later force that succeeds would not show that the records are on disk.
+    * The failure is recorded instead, and every thread that waits
+    * for the log, or tries to append to it, gets an exception;
+    * the database has to be restarted and recovered.
+    * @throws RuntimeException if the log could not be written,
+    * now or in an earlier round
     */
-   public synchronized int append(Object[] rec) {
-      int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
-      for (Object obj : rec)
-         recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
+   void flushRound() {
+      synchronized (roundLatch) {
+         checkFailure();
+         try {
+            writeRound();
+         }
+         catch (RuntimeException e) {
+            fail(e);
+            throw failure;
+         }
       }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
    }
 
    /**
-    * Adds the specified value to the page at the position denoted by
-    * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * Performs a flush round; the caller holds the round latch.
     */
-   private void appendVal(Object val) {
-      if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
-      else
-         mypage.setInt(currentpos, (Integer)val);
-      currentpos += size(val);
+   private void writeRound() {
+      long end = filled.get();
+      files.force();  // the names of the files in the records
+      int from = firstUnwritten;
+      int last = (int) ((end - 1) / blocksize);
+      lastSegment = Math.max(lastSegment, last / segblocks);
+      for (int b = from; b < last; b++)
+         SimpleDB.fileMgr().write(block(b), slot(b));
+      int used = (int) (end - (long) last * blocksize);
+      ByteBuffer src = slot(last).duplicate();
+      src.position(0);
+      src.limit(used);
+      lastPage.clear();
+      lastPage.put(src);
+      lastPage.put(zeros, 0, blocksize - used);
+      SimpleDB.fileMgr().write(block(last), lastPage);
+      for (int seg = from / segblocks; seg <= last / segblocks; seg++)
+         SimpleDB.fileMgr().force(segmentName(seg));
+      synchronized (this) {
+         firstUnwritten = last;
+         notifyAll();
+      }
+      synchronized (commitQueue) {
+         if (end > flushedLSN)
+            flushedLSN = end;
+         commitQueue.notifyAll();
+      }
    }
 
    /**
-    * Calculates the size of the specified integer or string.
-    * @param val the value
-    * @return the size of the value, in bytes
+    * Records the failure of a flush round,
+    * and wakes up the threads waiting for the log.
     */
-   private int size(Object val) {
-      if (val instanceof String) {
-         String sval = (String) val;
-         return STR_SIZE(sval.length());
+   private void fail(RuntimeException e) {
+      synchronized (commitQueue) {
+         failure = new RuntimeException("the log could not be written; "
+                                        + "restart the database to recover it", e);
+         commitQueue.notifyAll();
+      }
+      synchronized (this) {
+         notifyAll();
       }
-      else
-         return INT_SIZE;
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
-    * @return the LSN of the most recent log record
+    * Throws the recorded failure, if a flush round has failed.
     */
-   private int currentLSN() {
-      return currentblk.number();
+   private void checkFailure() {
+      RuntimeException e = failure;
+      if (e != null)
+         throw e;
    }
 
    /**
-    * Writes the current page to the log file.
+    * Asks the flusher for a round that covers the records below the specified LSN.
     */
-   private void flush() {
-      mypage.write(currentblk);
+   private void request(long lsn) {
+      synchronized (commitQueue) {
+         if (requested < lsn) {
+            requested = lsn;
+            commitQueue.notifyAll();
+         }
+      }
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Waits until the page of the ring that the specified block
+    * would use has been written.
+    * The flusher is asked for a round every few milliseconds,
+    * because it can only write the records that have been published.
     */
-   private void appendNewBlock() {
-      setLastRecordPosition(0);
-      currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   private void awaitRingSpace(int blknum) {
+      if (!flusherRunning) {
+         flushRound();
+         return;
+      }
+      synchronized (this) {
+         while (blknum - firstUnwritten >= LOG_BUFFERS) {
+            checkFailure();
+            request(filled.get());
+            try {
+               wait(10);
+            }
+            catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new RuntimeException("interrupted while appending to the log");
+            }
+         }
+      }
    }
 
    /**
-    * Sets up a circular chain of pointers to the records in the page.
-    * There is an integer added to the end of each log record
-    * whose value is the offset of the previous log record.
-    * The first four bytes of the page contain an integer whose value
-    * is the offset of the integer for the last log record in the page.
+    * Returns the disk block that holds the specified block of the log.
     */
-   private void finalizeRecord() {
-      mypage.setInt(currentpos, getLastRecordPosition());
-      setLastRecordPosition(currentpos);
-      currentpos += INT_SIZE;
+   Block block(int blknum) {
+      return new Block(segmentName(blknum / segblocks), blknum % segblocks);
    }
 
-   private int getLastRecordPosition() {
-      return mypage.getInt(LAST_POS);
+   /**
+    * Returns the number of the oldest block of the log.
+    */
+   int firstBlock() {
+      return firstSegment * segblocks;
+   }
+
+   private String segmentName(int seg) {
+      return logfile + "." + seg;
    }
 
-   private void setLastRecordPosition(int pos) {
-      mypage.setInt(LAST_POS, pos);
+   /**
+    * Returns the number of the segment with the specified file name,
+    * or -1 if the file is not a segment of this log.
+    */
+   private int segmentNumber(String filename) {
+      String suffix = filename.substring(logfile.length() + 1);
+      if (suffix.isEmpty() || suffix.length() > 9)
+         return -1;
+      for (int i=0; i<suffix.length(); i++)
+         if (!Character.isDigit(suffix.charAt(i)))
+            return -1;
+      return Integer.parseInt(suffix);
+   }
+
+   private ByteBuffer slot(int blknum) {
+      return slots[blknum % LOG_BUFFERS];
+   }
+
+   private int ringPos(long lsn) {
+      return (int) ((lsn / blocksize) % LOG_BUFFERS) * blocksize + (int) (lsn % blocksize);
+   }
+
+   /**
+    * Returns the offsets of the records in a block of the log, in order,
+    * stopping at the end of the records or at the first torn record.
+    * Void records are skipped.
+    */
+   static List<Integer> recordPositions(ByteBuffer bb, int blocksize) {
+      List<Integer> result = new ArrayList<Integer>();
+      scanRecords(bb, blocksize, result);
+      return result;
+   }
+
+   /**
+    * Returns the offset following the last record in a block of the log.
+    */
+   private static int endOfRecords(ByteBuffer bb, int blocksize) {
+      return scanRecords(bb, blocksize, null);
+   }
+
+   /**
+    * Reads the records in a block of the log, in order, stopping at the
+    * end of the records or at the first torn record, and returns the
+    * offset following the last of them.
+    * A void record, left by a writer that failed, has a negated length
+    * and is checked like any other record, but is not collected.
+    * @param positions the list that collects the offsets of the records, or null
+    */
+   private static int scanRecords(ByteBuffer bb, int blocksize, List<Integer> positions) {
+      int pos = HEADER_SIZE;
+      while (pos + RECORD_HEADER <= blocksize) {
+         int len = bb.getInt(pos);
+         int size = (len < 0) ? -len : len;
+         int end = pos + RECORD_HEADER + size;
+         if (size <= 0 || end > blocksize
+             || bb.getInt(pos + INT_SIZE) != CRC32C.compute(bb, pos + RECORD_HEADER, end))
+            break;
+         if (len > 0 && positions != null)
+            positions.add(pos);
+         pos = end;
+      }
+      return pos;
+   }
+
+   /**
+    * Determines whether the records of a block end normally,
+    * rather than at a torn record.
+    */
+   private boolean endsCleanly(ByteBuffer bb) {
+      int end = endOfRecords(bb, blocksize);
+      return end + RECORD_HEADER > blocksize || bb.getInt(end) == 0;
+   }
+
+   /**
+    * Erases the blocks of a segment that follow a torn block.
+    * They were written by the flush round that the crash interrupted,
+    * and must not be taken for part of the log once the
+    * torn block has been rewritten.
+    */
+   private void invalidateFollowing(LogReader reader, int blknum) {
+      ByteBuffer empty = ByteBuffer.allocate(blocksize);
+      boolean erased = false;
+      for (int b = blknum + 1; b % segblocks != 0 && reader.block(b) != null; b++) {
+         SimpleDB.fileMgr().write(block(b), empty);
+         erased = true;
+      }
+      if (erased)
+         SimpleDB.fileMgr().force(segmentName(blknum / segblocks));
    }
 }
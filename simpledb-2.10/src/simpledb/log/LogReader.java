@@ -0,0 +1,77 @@
+package simpledb.log;
+
+import simpledb.server.SimpleDB;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the blocks of the log for the log iterators,
+ * and individual records for clients that follow a chain of LSNs.
+ * Blocks are read several at a time, in chunks aligned on
+ * multiples of the chunk size, so that scanning the log in either
+ * direction does large sequential reads.
+ * A segment holds a whole number of chunks, so a chunk is always
+ * read from a single segment file.
+ */
+public class LogReader {
+   /**
+    * The number of blocks read at a time.
+    */
+   static final int READ_BLOCKS = 8;
+
+   private LogMgr logMgr;
+   private ByteBuffer chunk;
+   private ByteBuffer[] views = new ByteBuffer[READ_BLOCKS];
+   private int blocksize;
+   private int start = -1; // the number of the first block in the chunk
+
+   LogReader(LogMgr logMgr, int blocksize) {
+      this.logMgr = logMgr;
+      this.blocksize = blocksize;
+      chunk = ByteBuffer.allocate(READ_BLOCKS * blocksize);
+      for (int i=0; i<READ_BLOCKS; i++) {
+         ByteBuffer view = chunk.duplicate();
+         view.position(i * blocksize);
+         view.limit((i + 1) * blocksize);
+         views[i] = view.slice();
+      }
+   }
+
+   /**
+    * Returns the contents of the specified block of the log,
+    * reading its chunk if necessary.
+    * A block is valid only if it begins with its own number,
+    * which rules out blocks that were never written and
+    * the stale contents of a recycled segment.
+    * The returned buffer is overwritten when another chunk is read.
+    * @param blknum the number of the block
+    * @return the contents of the block, or null if it is not a valid block of the log
+    */
+   ByteBuffer block(int blknum) {
+      if (blknum < logMgr.firstBlock())
+         return null;
+      if (start < 0 || blknum < start || blknum >= start + READ_BLOCKS) {
+         start = blknum - blknum % READ_BLOCKS;
+         SimpleDB.fileMgr().read(logMgr.block(start), chunk);
+      }
+      ByteBuffer view = views[blknum - start];
+      return (view.getInt(0) == blknum) ? view : null;
+   }
+
+   /**
+    * Returns the log record at the specified LSN.
+    * The log is flushed first if the record is not yet on disk.
+    * Records read one after another from nearby LSNs,
+    * such as the records of a transaction, usually share a chunk.
+    * The returned record is invalid once another chunk is read.
+    * @param lsn the LSN of a record
+    * @return the record at that LSN
+    */
+   public BasicLogRecord record(long lsn) {
+      if (lsn >= logMgr.flushedLSN())
+         logMgr.flush(lsn);
+      ByteBuffer bb = block((int) (lsn / blocksize));
+      if (bb == null)
+         throw new IllegalArgumentException("no log record at LSN " + lsn);
+      return new BasicLogRecord(bb, (int) (lsn % blocksize) + LogMgr.RECORD_HEADER, lsn);
+   }
+}
@@ -0,0 +1,214 @@
+package simpledb.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the values of one log record into the space
+ * that the log manager has reserved for it.
+ * A writer is obtained from {@link LogMgr#reserve(int)},
+ * which has already claimed the bytes of the record; the client
+ * then writes exactly the values it reserved space for,
+ * and calls {@link #end()} to publish the record.
+ * Each thread has its own writer, which is reused for all of its
+ * records, so writing a record allocates nothing.
+ * <p>
+ * Values are written compactly. Integers and long integers are
+ * zigzag-encoded varints, so small values of either sign take a byte
+ * or two; strings are written as their UTF-8 length followed by
+ * their UTF-8 bytes. The static size methods give the encoded size
+ * of a value, which a client adds up before reserving its record.
+ * When the record ends, a CRC-32C of its values is stored
+ * in its header.
+ * <p>
+ * A record that is written past its reserved size, or that ends
+ * short of it, is never left unpublished, since the records reserved
+ * after it could then never be published either: its values are
+ * erased, it is published as a void record, which readers of the
+ * log skip, and the writer throws an IllegalStateException.
+ */
+public class LogWriter {
+   private final LogMgr logMgr;
+   private final ByteBuffer ring;
+   private long claimed, lsn, end; // the start of the claimed space, of the record, and its end
+   private int start, pos, limit;  // positions of the values in the ring
+   private boolean open = false;   // true until the record is published
+
+   LogWriter(LogMgr logMgr, ByteBuffer ring) {
+      this.logMgr = logMgr;
+      this.ring = ring;
+   }
+
+   /**
+    * Returns the number of bytes that the specified integer takes up in a log record.
+    * @param val the integer
+    * @return the size of the integer, in bytes
+    */
+   public static int intSize(int val) {
+      return longSize(val);
+   }
+
+   /**
+    * Returns the number of bytes that the specified long integer takes up in a log record.
+    * @param val the long integer
+    * @return the size of the long integer, in bytes
+    */
+   public static int longSize(long val) {
+      long v = zigzag(val);
+      int size = 1;
+      while ((v >>>= 7) != 0)
+         size++;
+      return size;
+   }
+
+   /**
+    * Returns the number of bytes that the specified string takes up in a log record.
+    * @param s the string
+    * @return the size of the string, in bytes
+    */
+   public static int strSize(String s) {
+      int len = utf8Length(s);
+      return intSize(len) + len;
+   }
+
+   /**
+    * Writes an integer as the next value of the record.
+    * @param val the integer
+    * @return this writer
+    */
+   public LogWriter putInt(int val) {
+      return putLong(val);
+   }
+
+   /**
+    * Writes a long integer, such as an LSN, as the next value of the record.
+    * @param val the long integer
+    * @return this writer
+    */
+   public LogWriter putLong(long val) {
+      long v = zigzag(val);
+      while ((v & ~0x7FL) != 0) {
+         put((byte) ((v & 0x7F) | 0x80));
+         v >>>= 7;
+      }
+      put((byte) v);
+      return this;
+   }
+
+   /**
+    * Writes a string as the next value of the record.
+    * @param val the string
+    * @return this writer
+    */
+   public LogWriter putString(String val) {
+      if (val == null)
+         fail("null string written to a log record");
+      putInt(utf8Length(val));
+      int len = val.length();
+      for (int i=0; i<len; i++) {
+         char c = val.charAt(i);
+         if (c < 0x80)
+            put((byte) c);
+         else if (c < 0x800) {
+            put((byte) (0xC0 | (c >> 6)));
+            put((byte) (0x80 | (c & 0x3F)));
+         }
+         else if (Character.isHighSurrogate(c) && i + 1 < len
+                  && Character.isLowSurrogate(val.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, val.charAt(++i));
+            put((byte) (0xF0 | (cp >> 18)));
+            put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            put((byte) (0x80 | (cp & 0x3F)));
+         }
+         else {
+            put((byte) (0xE0 | (c >> 12)));
+            put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            put((byte) (0x80 | (c & 0x3F)));
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Stores the checksum of the record, and publishes it,
+    * after waiting for the records that were reserved
+    * before it to be published.
+    * @return the LSN of the record
+    */
+   public long end() {
+      if (pos != limit)
+         fail("log record written with the wrong size");
+      ring.putInt(start - LogMgr.CRC_SIZE, CRC32C.compute(ring, start, limit));
+      open = false;
+      logMgr.publish(claimed, end);
+      return lsn;
+   }
+
+   /**
+    * Positions the writer on a newly reserved record.
+    * @param claimed the first byte claimed by the reservation, including any padding
+    * @param lsn the LSN of the record
+    * @param pos the position of the record's values in the ring
+    * @param size the size of the record's values
+    */
+   void begin(long claimed, long lsn, int pos, int size) {
+      this.claimed = claimed;
+      this.lsn = lsn;
+      this.start = pos;
+      this.pos = pos;
+      this.limit = pos + size;
+      end = lsn + LogMgr.RECORD_HEADER + size;
+      open = true;
+   }
+
+   /**
+    * Writes the next byte of the record, within its reserved space.
+    */
+   private void put(byte b) {
+      if (pos >= limit)
+         fail("log record written past its reserved size");
+      ring.put(pos++, b);
+   }
+
+   /**
+    * Publishes the record as a void record, whose values
+    * are zeros and whose length is negated,
+    * and throws an exception.
+    */
+   private void fail(String msg) {
+      if (open) {
+         for (int i=start; i<limit; i++)
+            ring.put(i, (byte) 0);
+         ring.putInt(start - LogMgr.RECORD_HEADER, start - limit);
+         ring.putInt(start - LogMgr.CRC_SIZE, CRC32C.compute(ring, start, limit));
+         open = false;
+         logMgr.publish(claimed, end);
+      }
+      throw new IllegalStateException(msg);
+   }
+
+   private static long zigzag(long val) {
+      return (val << 1) ^ (val >> 63);
+   }
+
+   /**
+    * Returns the number of bytes in the UTF-8 encoding of a string.
+    * An unpaired surrogate is encoded on its own, in three bytes.
+    */
+   private static int utf8Length(String s) {
+      int len = s.length();
+      int size = len;
+      for (int i=0; i<len; i++) {
+         char c = s.charAt(i);
+         if (c >= 0x800) {
+            size += 2;
+            if (Character.isHighSurrogate(c) && i + 1 < len
+                && Character.isLowSurrogate(s.charAt(i + 1)))
+               i++;  // four bytes for the pair
+         }
+         else if (c >= 0x80)
+            size++;
+      }
+      return size;
+   }
+}
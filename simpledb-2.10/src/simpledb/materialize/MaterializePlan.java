@@ -1,7 +1,7 @@
 package simpledb.materialize;
 
-import static simpledb.file.Page.BLOCK_SIZE;
 import simpledb.tx.Transaction;
+import simpledb.server.SimpleDB;
 import simpledb.record.*;
 import simpledb.query.*;
 
@@ -54,7 +54,7 @@ public class MaterializePlan implements Plan {
    public int blocksAccessed() {
       // create a dummy TableInfo object to calculate record length
       TableInfo ti = new TableInfo("", srcplan.schema());
-      double rpb = (double) (BLOCK_SIZE / ti.recordLength());
+      double rpb = (double) (SimpleDB.fileMgr().usableSize() / ti.recordLength());
       return (int) Math.ceil(srcplan.recordsOutput() / rpb);
    }
    
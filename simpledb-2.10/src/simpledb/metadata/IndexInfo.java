@@ -1,7 +1,6 @@
 package simpledb.metadata;
 
 import static java.sql.Types.INTEGER;
-import static simpledb.file.Page.BLOCK_SIZE;
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
@@ -50,6 +49,17 @@ public class IndexInfo {
       return new HashIndex(idxname, sch, tx);
    }
    
+   /**
+    * Notes that the transaction creates the files of the
+    * index described by this object, so that the index
+    * records that it inserts are not logged.
+    */
+   public void create() {
+      Schema sch = schema();
+      // Call BTreeIndex.create for btree indexing
+      HashIndex.create(idxname, sch, tx);
+   }
+   
    /**
     * Estimates the number of block accesses required to
     * find all index records having a particular search key.
@@ -63,7 +73,7 @@ public class IndexInfo {
     */
    public int blocksAccessed() {
       TableInfo idxti = new TableInfo("", schema());
-      int rpb = BLOCK_SIZE / idxti.recordLength();
+      int rpb = SimpleDB.fileMgr().usableSize() / idxti.recordLength();
       int numblocks = si.recordsOutput() / rpb;
       // Call HashIndex.searchCost for hash indexing
       return HashIndex.searchCost(numblocks, rpb);
@@ -35,6 +35,7 @@ public class IndexMgr {
     * Creates an index of the specified type for the specified field.
     * A unique ID is assigned to this index, and its information
     * is stored in the idxcat table.
+    * The transaction becomes the creator of the index's files.
     * @param idxname the name of the index
     * @param tblname the name of the indexed table
     * @param fldname the name of the indexed field
@@ -47,6 +48,7 @@ public class IndexMgr {
       rf.setString("tablename", tblname);
       rf.setString("fieldname", fldname);
       rf.close();
+      new IndexInfo(idxname, tblname, fldname, tx).create();
    }
    
    /**
@@ -53,10 +53,13 @@ public class TableMgr {
     * Creates a new table having the specified name and schema.
     * @param tblname the name of the new table
     * @param sch the table's schema
+    * The transaction becomes the creator of the table's file,
+    * so that the records it inserts are not logged.
     * @param tx the transaction creating the table
     */
    public void createTable(String tblname, Schema sch, Transaction tx) {
       TableInfo ti = new TableInfo(tblname, sch);
+      tx.create(ti.fileName());
       // insert one record into tblcat
       RecordFile tcatfile = new RecordFile(tcatInfo, tx);
       tcatfile.insert();
@@ -32,6 +32,8 @@ public class ChunkScan implements Scan {
       this.endbnum   = endbnum;
       this.sch = ti.schema();
       String filename = ti.fileName();
+      // start reading the whole chunk, rather than one block per pin
+      tx.prefetch(filename, startbnum, endbnum - startbnum + 1);
       for (int i=startbnum; i<=endbnum; i++) {
          Block blk = new Block(filename, i);
          pages.add(new RecordPage(blk, ti, tx));
@@ -18,7 +18,9 @@ public class RecordFile {
    
    /**
     * Constructs an object to manage a file of records.
-    * If the file does not exist, it is created.
+    * If the file does not exist, it is created,
+    * unless the transaction is read-only; the file is then
+    * treated as empty, until a record is inserted.
     * @param ti the table metadata
     * @param tx the transaction
     */
@@ -26,8 +28,11 @@ public class RecordFile {
       this.ti = ti;
       this.tx = tx;
       filename = ti.fileName();
-      if (tx.size(filename) == 0)
+      if (tx.size(filename) == 0) {
+         if (tx.isReadOnly())
+            return;
          appendBlock();
+      }
       moveTo(0);
    }
    
@@ -35,7 +40,8 @@ public class RecordFile {
     * Closes the record file.
     */
    public void close() {
-      rp.close();
+      if (rp != null)
+         rp.close();
    }
    
    /**
@@ -43,7 +49,8 @@ public class RecordFile {
     * will wind up at the first record. 
     */
    public void beforeFirst() {
-      moveTo(0);
+      if (rp != null)
+         moveTo(0);
    }
    
    /**
@@ -52,6 +59,8 @@ public class RecordFile {
     * @return false if there is no next record.
     */
    public boolean next() {
+      if (rp == null)
+         return false;
       while (true) {
          if (rp.next())
             return true;
@@ -119,6 +128,10 @@ public class RecordFile {
     * then a new block is appended to the file.
     */
    public void insert() {
+      if (rp == null) {
+         appendBlock();
+         moveTo(0);
+      }
       while (!rp.insert()) {
          if (atLastBlock())
             appendBlock();
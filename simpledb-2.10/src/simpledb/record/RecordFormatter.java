@@ -4,6 +4,7 @@ import static java.sql.Types.INTEGER;
 import static simpledb.file.Page.*;
 import static simpledb.record.RecordPage.EMPTY;
 import simpledb.file.Page;
+import simpledb.server.SimpleDB;
 import simpledb.buffer.PageFormatter;
 
 /**
@@ -32,7 +33,7 @@ class RecordFormatter implements PageFormatter {
     */
    public void format(Page page) {
       int recsize = ti.recordLength() + INT_SIZE;
-      for (int pos=0; pos+recsize<=BLOCK_SIZE; pos += recsize) {
+      for (int pos=0; pos+recsize<=SimpleDB.fileMgr().usableSize(); pos += recsize) {
          page.setInt(pos, EMPTY);
          makeDefaultRecord(page, pos);
       }
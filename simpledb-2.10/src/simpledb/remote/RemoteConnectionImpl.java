@@ -6,19 +6,26 @@ import java.rmi.server.UnicastRemoteObject;
 
 /**
  * The RMI server-side implementation of RemoteConnection.
+ * A connection begins its transactions when its statements need them.
+ * A query that is not part of a transaction in progress runs in a
+ * read-only transaction, which never waits for updates, nor delays them.
+ * It is kept apart from the transaction of the connection's updates,
+ * so that an update can run while the query's result set is open.
+ * A connection that is set to read-only runs all its
+ * statements in read-only transactions, which write no log records.
  * @author Edward Sciore
  */
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
-   private Transaction tx;
+   private Transaction tx = null; // null until a statement needs a transaction
+   private Transaction queryTx = null; // the read-only transaction of the open queries, if any
+   private boolean readOnly = false;
    
    /**
-    * Creates a remote connection
-    * and begins a new transaction for it.
+    * Creates a remote connection.
     * @throws RemoteException
     */
    RemoteConnectionImpl() throws RemoteException {
-      tx = new Transaction();
    }
    
    /**
@@ -31,40 +38,82 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
    
    /**
     * Closes the connection.
-    * The current transaction is committed.
+    * The current transactions are committed.
     * @see simpledb.remote.RemoteConnection#close()
     */
    public void close() throws RemoteException {
-      tx.commit();
+      if (queryTx != null)
+         commit(queryTx);
+      if (tx != null)
+         commit(tx);
+   }
+   
+   /**
+    * Sets whether the connection's transactions are read-only.
+    * The setting applies from the next transaction on.
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      this.readOnly = readOnly;
    }
    
 // The following methods are used by the server-side classes.
    
    /**
-    * Returns the transaction currently associated with
-    * this connection.
-    * @return the transaction associated with this connection
+    * Returns the transaction in which an update runs,
+    * beginning one if necessary.
+    * @return the transaction for the update
     */
    Transaction getTransaction() {  
+      if (tx == null)
+         tx = new Transaction(readOnly);
       return tx;
    }
    
    /**
-    * Commits the current transaction,
-    * and begins a new one.
+    * Returns the transaction in which a query runs:
+    * the update transaction, if there is one,
+    * and otherwise the read-only transaction of the
+    * open queries, beginning one if necessary.
+    * @return the transaction for the query
+    */
+   Transaction getQueryTransaction() {
+      if (tx != null)
+         return tx;
+      if (queryTx == null)
+         queryTx = new Transaction(true);
+      return queryTx;
+   }
+   
+   /**
+    * Commits the specified transaction of this connection,
+    * unless it has already ended.
+    * @param t the transaction
     */
-   void commit() {
-      tx.commit();
-      tx = new Transaction();
+   void commit(Transaction t) {
+      if (t != tx && t != queryTx)
+         return;
+      t.commit();
+      forget(t);
    }
    
    /**
-    * Rolls back the current transaction,
-    * and begins a new one.
+    * Rolls back the specified transaction of this connection,
+    * unless it has already ended.
+    * @param t the transaction
     */
-   void rollback() {
-      tx.rollback();
-      tx = new Transaction();
+   void rollback(Transaction t) {
+      if (t != tx && t != queryTx)
+         return;
+      t.rollback();
+      forget(t);
+   }
+   
+   private void forget(Transaction t) {
+      if (t == tx)
+         tx = null;
+      if (t == queryTx)
+         queryTx = null;
    }
 }
 
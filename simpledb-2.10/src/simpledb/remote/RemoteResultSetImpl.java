@@ -1,6 +1,7 @@
 package simpledb.remote;
 
 import simpledb.record.Schema;
+import simpledb.tx.Transaction;
 import simpledb.query.*;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -14,18 +15,21 @@ class RemoteResultSetImpl extends UnicastRemoteObject implements RemoteResultSet
    private Scan s;
    private Schema sch;
    private RemoteConnectionImpl rconn;
+   private Transaction tx;
 
    /**
     * Creates a RemoteResultSet object.
     * The specified plan is opened, and the scan is saved.
     * @param plan the query plan
-    * @param rconn TODO
+    * @param rconn the connection that executed the query
+    * @param tx the transaction in which the query runs
     * @throws RemoteException
     */
-   public RemoteResultSetImpl(Plan plan, RemoteConnectionImpl rconn) throws RemoteException {
+   public RemoteResultSetImpl(Plan plan, RemoteConnectionImpl rconn, Transaction tx) throws RemoteException {
       s = plan.open();
       sch = plan.schema();
       this.rconn = rconn;
+      this.tx = tx;
    }
 
    /**
@@ -38,7 +42,7 @@ class RemoteResultSetImpl extends UnicastRemoteObject implements RemoteResultSet
 	      return s.next();
       }
       catch(RuntimeException e) {
-         rconn.rollback();
+         rconn.rollback(tx);
          throw e;
       }
    }
@@ -54,7 +58,7 @@ class RemoteResultSetImpl extends UnicastRemoteObject implements RemoteResultSet
 	      return s.getInt(fldname);
       }
       catch(RuntimeException e) {
-         rconn.rollback();
+         rconn.rollback(tx);
          throw e;
       }
    }
@@ -70,7 +74,7 @@ class RemoteResultSetImpl extends UnicastRemoteObject implements RemoteResultSet
 	      return s.getString(fldname);
       }
       catch(RuntimeException e) {
-         rconn.rollback();
+         rconn.rollback(tx);
          throw e;
       }
    }
@@ -90,7 +94,7 @@ class RemoteResultSetImpl extends UnicastRemoteObject implements RemoteResultSet
     */
    public void close() throws RemoteException {
       s.close();
-      rconn.commit();
+      rconn.commit(tx);
    }
 }
 
@@ -11,5 +11,6 @@ import java.rmi.*;
 public interface RemoteStatement extends Remote {
    public RemoteResultSet executeQuery(String qry) throws RemoteException;
    public int            executeUpdate(String cmd) throws RemoteException;
+   public void           setQueryTimeout(int seconds) throws RemoteException;
 }
 
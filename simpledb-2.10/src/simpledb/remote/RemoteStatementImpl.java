@@ -13,6 +13,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial")
 class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement {
    private RemoteConnectionImpl rconn;
+   private long maxwait = SimpleDB.WAIT_TIMEOUT;
    
    public RemoteStatementImpl(RemoteConnectionImpl rconn) throws RemoteException {
       this.rconn = rconn;
@@ -23,16 +24,19 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
     * The method calls the query planner to create a plan
     * for the query. It then sends the plan to the
     * RemoteResultSetImpl constructor for processing.
+    * Unless a transaction is in progress, the query
+    * runs in a read-only transaction.
     * @see simpledb.remote.RemoteStatement#executeQuery(java.lang.String)
     */
    public RemoteResultSet executeQuery(String qry) throws RemoteException {
+      Transaction tx = rconn.getQueryTransaction();
       try {
-         Transaction tx = rconn.getTransaction();
+         tx.setWaitTimeout(maxwait);
          Plan pln = SimpleDB.planner().createQueryPlan(qry, tx);
-         return new RemoteResultSetImpl(pln, rconn);
+         return new RemoteResultSetImpl(pln, rconn, tx);
       }
       catch(RuntimeException e) {
-         rconn.rollback();
+         rconn.rollback(tx);
          throw e;
       }
    }
@@ -44,15 +48,27 @@ class RemoteStatementImpl extends UnicastRemoteObject implements RemoteStatement
     * @see simpledb.remote.RemoteStatement#executeUpdate(java.lang.String)
     */
    public int executeUpdate(String cmd) throws RemoteException {
+      Transaction tx = rconn.getTransaction();
       try {
-         Transaction tx = rconn.getTransaction();
+         tx.setWaitTimeout(maxwait);
          int result = SimpleDB.planner().executeUpdate(cmd, tx);
-         rconn.commit();
+         rconn.commit(tx);
          return result;
       }
       catch(RuntimeException e) {
-         rconn.rollback();
+         rconn.rollback(tx);
          throw e;
       }
    }
+   
+   /**
+    * Sets the longest time that the statement's transaction
+    * waits for a lock or a buffer before it is aborted.
+    * A value of 0 means that there is no limit;
+    * deadlocks are still detected.
+    * @see simpledb.remote.RemoteStatement#setQueryTimeout(int)
+    */
+   public void setQueryTimeout(int seconds) throws RemoteException {
+      maxwait = (seconds == 0) ? Long.MAX_VALUE : seconds * 1000L;
+   }
 }
@@ -10,6 +10,7 @@ import java.sql.*;
  */
 public class SimpleConnection extends ConnectionAdapter {
    private RemoteConnection rconn;
+   private boolean readOnly = false;
    
    public SimpleConnection(RemoteConnection c) {
       rconn = c;
@@ -33,5 +34,19 @@ public class SimpleConnection extends ConnectionAdapter {
          throw new SQLException(e);
       }
    }
+   
+   public void setReadOnly(boolean readOnly) throws SQLException {
+      try {
+         rconn.setReadOnly(readOnly);
+         this.readOnly = readOnly;
+      }
+      catch(Exception e) {
+         throw new SQLException(e);
+      }
+   }
+   
+   public boolean isReadOnly() throws SQLException {
+      return readOnly;
+   }
 }
 
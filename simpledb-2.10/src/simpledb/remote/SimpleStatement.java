@@ -10,6 +10,7 @@ import java.sql.*;
  */
 public class SimpleStatement extends StatementAdapter {
    private RemoteStatement rstmt;
+   private int timeout = 0;
    
    public SimpleStatement(RemoteStatement s) {
       rstmt = s;
@@ -33,5 +34,18 @@ public class SimpleStatement extends StatementAdapter {
          throw new SQLException(e);
       }
    }
+   
+   public void setQueryTimeout(int seconds) throws SQLException {
+      try {
+         rstmt.setQueryTimeout(seconds);
+         timeout = seconds;
+      }
+      catch(Exception e) {
+         throw new SQLException(e);
+      }
+   }
+   
+   public int getQueryTimeout() throws SQLException {
+      return timeout;
+   }
 }
-
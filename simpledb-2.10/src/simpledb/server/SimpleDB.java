@@ -3,6 +3,8 @@ package simpledb.server;
 import simpledb.file.FileMgr;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.tx.concurrency.ConcurrencyMgr;
 import simpledb.log.LogMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.planner.*;
@@ -24,7 +26,16 @@ import simpledb.index.planner.IndexUpdatePlanner;
  */
 public class SimpleDB {
    public static int BUFFER_SIZE = 8;
+   public static int BLOCK_SIZE = Integer.getInteger("simpledb.blocksize", 4096);
+   public static boolean MMAP_READS = Boolean.getBoolean("simpledb.mmap");
+   public static BufferReplacementPolicy BUFFER_POLICY = BufferReplacementPolicy.LRU;
+   public static boolean BUFFER_TRACE = Boolean.getBoolean("simpledb.buffer.trace");
    public static String LOG_FILE = "simpledb.log";
+   public static int LOG_SEGMENT_BLOCKS = Integer.getInteger("simpledb.log.segment", 256);
+   public static int CHECKPOINT_INTERVAL = Integer.getInteger("simpledb.checkpoint.interval", 30000);
+   public static long WAIT_TIMEOUT = Long.getLong("simpledb.wait.timeout", 10000);
+   public static int LOCK_ESCALATION = Integer.getInteger("simpledb.lock.escalation", 512);
+   public static int VERSION_GC_INTERVAL = Integer.getInteger("simpledb.version.gc", 1000);
    
    private static FileMgr     fm;
    private static BufferMgr   bm;
@@ -48,6 +59,8 @@ public class SimpleDB {
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL);
+      ConcurrencyMgr.startVersionCollector(VERSION_GC_INTERVAL);
    }
    
    // The following initialization methods are useful for 
@@ -69,6 +82,7 @@ public class SimpleDB {
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
       logm = new LogMgr(LOG_FILE);
+      logm.startFlusher();
    }
    
    /**
@@ -78,6 +92,10 @@ public class SimpleDB {
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
       bm = new BufferMgr(BUFFER_SIZE);
+      bm.startCleaner();
+      bm.startPrefetcher();
+      if (BUFFER_TRACE)
+         bm.setTracer(new ConsoleBufferTracer());
    }
    
    /**
@@ -1,5 +1,6 @@
 package simpledb.server;
 
+import simpledb.buffer.BufferReplacementPolicy;
 import simpledb.remote.*;
 import java.rmi.registry.*;
 
@@ -7,6 +8,8 @@ public class Startup {
    public static void main(String args[]) throws Exception {
       // configure and initialize the database
       String database = args.length == 0 ? "StudentDB" : args[0];
+      if (args.length > 1)
+         SimpleDB.BUFFER_POLICY = BufferReplacementPolicy.valueOf(args[1].toUpperCase());
       SimpleDB.init(database);
       
       // create a registry specific for the server on the default port
@@ -13,6 +13,15 @@ class BufferList {
    private Map<Block,Buffer> buffers = new HashMap<Block,Buffer>();
    private List<Block> pins = new ArrayList<Block>();
    private BufferMgr bufferMgr = SimpleDB.bufferMgr();
+   private long maxwait = SimpleDB.WAIT_TIMEOUT;
+   
+   /**
+    * Sets the longest time to wait for a buffer.
+    * @param maxwait the time, in milliseconds
+    */
+   void setWaitTimeout(long maxwait) {
+      this.maxwait = maxwait;
+   }
    
    /**
     * Returns the buffer pinned to the specified block.
@@ -30,7 +39,7 @@ class BufferList {
     * @param blk a reference to the disk block
     */
    void pin(Block blk) {
-      Buffer buff = bufferMgr.pin(blk);
+      Buffer buff = bufferMgr.pin(blk, maxwait);
       buffers.put(blk, buff);
       pins.add(blk);
    }
@@ -40,10 +49,11 @@ class BufferList {
     * and pins it.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
+    * @param force true if the new block must be forced to disk
     * @return a reference to the newly-created block
     */
-   Block pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = bufferMgr.pinNew(filename, fmtr);
+   Block pinNew(String filename, PageFormatter fmtr, boolean force) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, force, maxwait);
       Block blk = buff.block();
       buffers.put(blk, buff);
       pins.add(blk);
@@ -0,0 +1,12 @@
+package simpledb.tx;
+
+/**
+ * A runtime exception indicating that a read-only
+ * transaction tried to modify a database file.
+ */
+@SuppressWarnings("serial")
+public class ReadOnlyException extends RuntimeException {
+   public ReadOnlyException(String filename) {
+      super("a read-only transaction cannot modify " + filename);
+   }
+}
@@ -2,6 +2,7 @@ package simpledb.tx;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.Block;
+import simpledb.file.Page;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.tx.concurrency.ConcurrencyMgr;
@@ -18,6 +19,7 @@ public class Transaction {
    private RecoveryMgr    recoveryMgr;
    private ConcurrencyMgr concurMgr;
    private int txnum;
+   private boolean readOnly;
    private BufferList myBuffers = new BufferList();
    
    /**
@@ -33,43 +35,59 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
+      this(false);
+   }
+   
+   /**
+    * Creates a new transaction, which may be read-only.
+    * A read-only transaction sees the database as it was committed
+    * when the transaction began. It reads without locks, so it never
+    * waits for update transactions and they never wait for it.
+    * It writes nothing to the log, so committing it costs no I/O,
+    * and it may only modify temporary files.
+    * @param readOnly true if the transaction is read-only
+    */
+   public Transaction(boolean readOnly) {
+      this.readOnly = readOnly;
       txnum       = nextTxNumber();
-      recoveryMgr = new RecoveryMgr(txnum);
-      concurMgr   = new ConcurrencyMgr();
+      recoveryMgr = new RecoveryMgr(txnum, readOnly);
+      concurMgr   = new ConcurrencyMgr(txnum, readOnly);
    }
+
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
-    * releases all locks, and unpins any pinned buffers.
+    * Writes and flushes a commit record to the log, unless
+    * the transaction is read-only, releases all locks,
+    * and unpins any pinned buffers.
     */
    public void commit() {
       recoveryMgr.commit();
-      concurMgr.release();
+      concurMgr.commit();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " committed");
    }
    
    /**
     * Rolls back the current transaction.
-    * Undoes any modified values,
-    * flushes those buffers,
+    * Unpins any pinned buffers, undoes any modified values,
     * writes and flushes a rollback record to the log,
-    * releases all locks, and unpins any pinned buffers.
+    * and releases all locks.
+    * The buffers are unpinned first, so that the buffers of
+    * the files that the transaction created can be dropped.
     */
    public void rollback() {
-      recoveryMgr.rollback();
-      concurMgr.release();
       myBuffers.unpinAll();
+      recoveryMgr.rollback();
+      concurMgr.rollback();
       System.out.println("transaction " + txnum + " rolled back");
    }
    
    /**
     * Flushes all modified buffers.
-    * Then goes through the log, rolling back all
-    * uncommitted transactions.  Finally, 
-    * writes a quiescent checkpoint record to the log.
+    * Then goes through the log, redoing the logged updates
+    * and rolling back all uncommitted transactions.
+    * Finally, takes a checkpoint.
     * This method is called only during system startup,
     * before user transactions begin.
     */
@@ -78,6 +96,17 @@ public class Transaction {
       recoveryMgr.recover();
    }
    
+   /**
+    * Sets the longest time that the transaction waits
+    * for a lock or a buffer before it is aborted.
+    * Deadlocks are detected without waiting for the timeout.
+    * @param maxwait the time, in milliseconds
+    */
+   public void setWaitTimeout(long maxwait) {
+      concurMgr.setWaitTimeout(maxwait);
+      myBuffers.setWaitTimeout(maxwait);
+   }
+   
    /**
     * Pins the specified block.
     * The transaction manages the buffer for the client.
@@ -87,6 +116,19 @@ public class Transaction {
       myBuffers.pin(blk);
    }
    
+   /**
+    * Asks for the specified blocks to be read into
+    * the buffer pool in the background.
+    * No locks are obtained and nothing is pinned;
+    * the blocks still have to be pinned before they are used.
+    * @param filename the name of the file
+    * @param blknum the number of the first block
+    * @param count the number of blocks
+    */
+   public void prefetch(String filename, int blknum, int count) {
+      SimpleDB.bufferMgr().prefetch(filename, blknum, count);
+   }
+   
    /**
     * Unpins the specified block.
     * The transaction looks up the buffer pinned to this block,
@@ -102,6 +144,8 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A read-only transaction reads the value from
+    * its snapshot instead, without a lock.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the integer stored at that offset
@@ -109,7 +153,12 @@ public class Transaction {
    public int getInt(Block blk, int offset) {
       concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      return buff.getInt(offset);
+      if (!concurMgr.isSnapshot())
+         return buff.getInt(offset);
+      synchronized (buff) {  // a version is saved before the buffer changes
+         Page p = concurMgr.snapshotPage(buff);
+         return (p != null) ? p.getInt(offset) : buff.getInt(offset);
+      }
    }
    
    /**
@@ -117,6 +166,8 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A read-only transaction reads the value from
+    * its snapshot instead, without a lock.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the string stored at that offset
@@ -124,7 +175,12 @@ public class Transaction {
    public String getString(Block blk, int offset) {
       concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      return buff.getString(offset);
+      if (!concurMgr.isSnapshot())
+         return buff.getString(offset);
+      synchronized (buff) {  // a version is saved before the buffer changes
+         Page p = concurMgr.snapshotPage(buff);
+         return (p != null) ? p.getString(offset) : buff.getString(offset);
+      }
    }
    
    /**
@@ -136,15 +192,25 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * If the change is logged, the committed contents of the block
+    * are first saved for the read-only transactions. The other changes
+    * are to temporary files, and to files that the transaction created,
+    * whose tables and indexes are not in the catalog of any snapshot
+    * that began before the transaction commits.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setInt(Block blk, int offset, int val) {
+      checkWritable(blk.fileName());
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      synchronized (buff) {  // a checkpoint sees either the change or its record
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         if (lsn >= 0)
+            concurMgr.saveVersion(buff, offset, buff.getInt(offset));
+         buff.setInt(offset, val, txnum, lsn);
+      }
    }
    
    /**
@@ -156,15 +222,25 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * If the change is logged, the committed contents of the block
+    * are first saved for the read-only transactions. The other changes
+    * are to temporary files, and to files that the transaction created,
+    * whose tables and indexes are not in the catalog of any snapshot
+    * that began before the transaction commits.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setString(Block blk, int offset, String val) {
+      checkWritable(blk.fileName());
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      synchronized (buff) {  // a checkpoint sees either the change or its record
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         if (lsn >= 0)
+            concurMgr.saveVersion(buff, offset, buff.getString(offset));
+         buff.setString(offset, val, txnum, lsn);
+      }
    }
    
    /**
@@ -172,13 +248,22 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * A read-only transaction takes no lock, and sees a file
+    * that is being created by an unfinished transaction as empty,
+    * so it never pins a block that a rollback would delete.
+    * A read-only transaction cannot create an empty file, so its clients
+    * must check {@link #isReadOnly()} before appending the first block.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
    public int size(String filename) {
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.sLock(dummyblk);
-      return SimpleDB.fileMgr().size(filename);
+      int size = SimpleDB.fileMgr().size(filename);
+      // the creator is registered before it appends, so check after reading the size
+      if (readOnly && RecoveryMgr.isBeingCreated(filename))
+         return 0;
+      return size;
    }
    
    /**
@@ -186,18 +271,62 @@ public class Transaction {
     * and returns a reference to it.
     * This method first obtains an XLock on the
     * "end of the file", before performing the append.
+    * If the transaction created the file, its new blocks
+    * are not forced until it commits.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
     * @return a reference to the newly-created disk block
     */
    public Block append(String filename, PageFormatter fmtr) {
+      checkWritable(filename);
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk);
-      Block blk = myBuffers.pinNew(filename, fmtr);
+      boolean unlogged = recoveryMgr.isCreator(filename);
+      Block blk = myBuffers.pinNew(filename, fmtr, !unlogged);
       unpin(blk);
       return blk;
    }
    
+   /**
+    * Notes that the transaction creates the specified file,
+    * such as a file of a new table or index.
+    * This method first obtains an XLock on the
+    * "end of the file", which it keeps until it finishes.
+    * If the file is empty, the transaction becomes its creator:
+    * its changes to the file are not logged, and the file is
+    * forced when it commits, or deleted if it does not.
+    * @param filename the name of the file
+    */
+   public void create(String filename) {
+      checkWritable(filename);
+      Block dummyblk = new Block(filename, END_OF_FILE);
+      concurMgr.xLock(dummyblk);
+      recoveryMgr.creating(filename);
+   }
+   
+   /**
+    * Returns true if the transaction is read-only.
+    * Clients that would create a file when they find it empty
+    * must instead treat it as empty in a read-only transaction.
+    * @return true if the transaction is read-only
+    */
+   public boolean isReadOnly() {
+      return readOnly;
+   }
+   
+   /**
+    * Rejects a change to a file other than
+    * a temporary one, if the transaction is read-only.
+    */
+   private void checkWritable(String filename) {
+      if (readOnly && !isTempFile(filename))
+         throw new ReadOnlyException(filename);
+   }
+   
+   private static boolean isTempFile(String filename) {
+      return filename.startsWith("temp");
+   }
+   
    private static synchronized int nextTxNumber() {
       nextTxNum++;
       System.out.println("new transaction: " + nextTxNum);
@@ -1,65 +1,288 @@
 package simpledb.tx.concurrency;
 
+import static simpledb.tx.concurrency.LockTable.*;
 import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.buffer.Buffer;
+import simpledb.server.SimpleDB;
+import simpledb.tx.concurrency.VersionStore.Version;
 import java.util.*;
 
 /**
  * The concurrency manager for the transaction.
- * Each transaction has its own concurrency manager. 
- * The concurrency manager keeps track of which locks the 
+ * Each transaction has its own concurrency manager.
+ * The concurrency manager keeps track of which locks the
  * transaction currently has, and interacts with the
- * global lock table as needed. 
+ * global lock table as needed.
+ * <p>
+ * Locks are taken at two granularities, files and blocks.
+ * Before a block is locked in S or X mode, its file is locked
+ * in the IS or IX mode. When the transaction has locked
+ * {@link SimpleDB#LOCK_ESCALATION} blocks of a file, it tries to
+ * escalate to a single lock on the file: S if it has only read the
+ * file, X otherwise. If the file lock is granted, the block locks
+ * of the file are released, and later requests for blocks of the
+ * file that the file lock covers do not reach the lock table.
+ * If the file lock cannot be granted at once, the transaction
+ * keeps locking blocks and tries again later.
+ * <p>
+ * A lock request that waits longer than the transaction's
+ * wait timeout is aborted; the timeout is initially
+ * {@link SimpleDB#WAIT_TIMEOUT}.
+ * <p>
+ * A snapshot transaction takes no locks at all. Instead it reads
+ * the blocks as they were committed when it began, from the
+ * versions that update transactions save before they change a block.
+ * Update transactions still lock as described above, so they
+ * never conflict with snapshot transactions.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
-   
+   private static final int WHOLE_FILE = -2; // the block number that stands for a file in the lock table
+
    /**
     * The global lock table.  This variable is static because all transactions
     * share the same table.
     */
    private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
-   
+   private static VersionStore versions = new VersionStore();
+   private Map<Block,Integer> locks  = new HashMap<Block,Integer>();
+   private Map<String,Integer> fileLocks = new HashMap<String,Integer>();
+   private Map<String,Integer> blockCounts = new HashMap<String,Integer>(); // the block locks held in each file
+   private int txnum;
+   private long maxwait = SimpleDB.WAIT_TIMEOUT;
+   private long snapshot = -1; // the timestamp of the transaction's snapshot, or -1 if it takes locks
+   private Map<Block,Version> saved = new HashMap<Block,Version>();
+
+   /**
+    * Creates the concurrency manager of the specified transaction.
+    * @param txnum the id of the transaction
+    */
+   public ConcurrencyMgr(int txnum) {
+      this(txnum, false);
+   }
+
+   /**
+    * Creates the concurrency manager of the specified transaction,
+    * which may read from a snapshot of the database instead of locking.
+    * @param txnum the id of the transaction
+    * @param snapshot true if the transaction reads from a snapshot
+    */
+   public ConcurrencyMgr(int txnum, boolean snapshot) {
+      this.txnum = txnum;
+      if (snapshot)
+         this.snapshot = versions.beginSnapshot();
+   }
+
+   /**
+    * Starts a daemon thread that drops, at the specified interval,
+    * the versions that no running snapshot can read.
+    * @param interval the number of milliseconds between collections
+    */
+   public static void startVersionCollector(long interval) {
+      Thread t = new Thread(new VersionCollector(versions, interval), "simpledb-version-collector");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Returns true if the transaction reads from a snapshot.
+    * @return true if the transaction reads from a snapshot
+    */
+   public boolean isSnapshot() {
+      return snapshot >= 0;
+   }
+
+   /**
+    * Sets the longest time that a lock request may wait.
+    * @param maxwait the time, in milliseconds
+    */
+   public void setWaitTimeout(long maxwait) {
+      this.maxwait = maxwait;
+   }
+
    /**
     * Obtains an SLock on the block, if necessary.
+    * A snapshot transaction takes no lock.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no locks on that block
+    * and no lock on its file that allows it to be read,
+    * after locking the file in IS mode.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk);
-         locks.put(blk, "S");
-      }
+      if (isSnapshot())
+         return;
+      String filename = blk.fileName();
+      if (covers(fileLocks.get(filename), S) || locks.get(blk) != null)
+         return;
+      lockFile(filename, IS);
+      lockBlock(blk, S);
    }
-   
+
    /**
     * Obtains an XLock on the block, if necessary.
+    * A snapshot transaction takes no lock, since
+    * it may only modify its temporary files.
     * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * or an XLock on its file, then the method locks the file
+    * in IX mode and gets an XLock on the block, upgrading
+    * the transaction's SLock if it has one.
     * @param blk a refrence to the disk block
     */
    public void xLock(Block blk) {
-      if (!hasXLock(blk)) {
-         sLock(blk);
-         locktbl.xLock(blk);
-         locks.put(blk, "X");
+      if (isSnapshot())
+         return;
+      String filename = blk.fileName();
+      if (covers(fileLocks.get(filename), X) || hasXLock(blk))
+         return;
+      lockFile(filename, IX);
+      lockBlock(blk, X);
+   }
+
+   /**
+    * Saves the committed contents of the buffer's block, before
+    * the transaction changes the value at the specified offset.
+    * The first change of the block saves a version of it, which
+    * copies the page if a snapshot is running, and otherwise
+    * records each change together with the value it replaces.
+    * The caller must hold an XLock on the block,
+    * and the monitor of the buffer.
+    * @param buff the buffer holding the block
+    * @param offset the offset of the value to be changed
+    * @param oldval the current value at the offset
+    */
+   public void saveVersion(Buffer buff, int offset, Object oldval) {
+      Block blk = buff.block();
+      Version v = saved.get(blk);
+      if (v == null) {
+         Page image = versions.hasSnapshots() ? buff.copyContents() : null;
+         v = versions.save(blk, image);
+         saved.put(blk, v);
+      }
+      v.record(buff, offset, oldval);
+   }
+
+   /**
+    * Returns the contents of the buffer's block as of the
+    * transaction's snapshot, if they have changed since.
+    * The caller must hold the monitor of the buffer.
+    * @param buff the buffer holding the block
+    * @return the contents of the block as of the snapshot,
+    * or null if the current contents are the same
+    */
+   public Page snapshotPage(Buffer buff) {
+      return versions.read(buff, snapshot);
+   }
+
+   /**
+    * Makes the versions saved by the committing transaction
+    * visible to the snapshots that began before it,
+    * then releases all locks.
+    */
+   public void commit() {
+      versions.commit(saved.values());
+      end();
+   }
+
+   /**
+    * Discards the versions saved by the transaction,
+    * whose changes have been undone, then releases all locks.
+    */
+   public void rollback() {
+      versions.discard(saved.values());
+      end();
+   }
+
+   private void end() {
+      saved.clear();
+      if (isSnapshot()) {
+         versions.endSnapshot(snapshot);
+         snapshot = -1;
       }
+      release();
    }
-   
+
    /**
     * Releases all locks by asking the lock table to
-    * unlock each one.
+    * unlock each one, the blocks before their files.
     */
    public void release() {
       for (Block blk : locks.keySet())
-         locktbl.unlock(blk);
+         locktbl.unlock(blk, txnum);
+      for (String filename : fileLocks.keySet())
+         locktbl.unlock(new Block(filename, WHOLE_FILE), txnum);
       locks.clear();
+      fileLocks.clear();
+      blockCounts.clear();
    }
-   
+
    private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+      Integer locktype = locks.get(blk);
+      return locktype != null && locktype == X;
+   }
+
+   /**
+    * Locks the file in a mode covering the specified one.
+    */
+   private void lockFile(String filename, int mode) {
+      Integer held = fileLocks.get(filename);
+      if (covers(held, mode))
+         return;
+      int target = (held == null) ? mode : SUPREMUM[held][mode];
+      locktbl.lock(new Block(filename, WHOLE_FILE), txnum, target, (held == null) ? -1 : held, maxwait);
+      fileLocks.put(filename, target);
+   }
+
+   /**
+    * Locks the block in the specified mode, and
+    * escalates to a file lock if the transaction
+    * has locked enough blocks of the file.
+    */
+   private void lockBlock(Block blk, int mode) {
+      Integer held = locks.get(blk);
+      int target = (held == null) ? mode : SUPREMUM[held][mode];
+      locktbl.lock(blk, txnum, target, (held == null) ? -1 : held, maxwait);
+      locks.put(blk, target);
+      if (held != null)
+         return;
+      String filename = blk.fileName();
+      Integer count = blockCounts.get(filename);
+      count = (count == null) ? 1 : count + 1;
+      blockCounts.put(filename, count);
+      if (count % SimpleDB.LOCK_ESCALATION == 0)
+         escalate(filename);
+   }
+
+   /**
+    * Tries to replace the block locks of the file by a single
+    * lock on the file, without waiting.
+    * The file is locked in X mode if the transaction
+    * has written any of its blocks, and in S mode otherwise.
+    */
+   private void escalate(String filename) {
+      int held = fileLocks.get(filename);
+      int mode = (held == IX || held == SIX) ? X : S;
+      int target = SUPREMUM[held][mode];
+      if (!locktbl.tryLock(new Block(filename, WHOLE_FILE), txnum, target, held))
+         return;
+      fileLocks.put(filename, target);
+      Iterator<Map.Entry<Block,Integer>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Block blk = iter.next().getKey();
+         if (blk.fileName().equals(filename)) {
+            locktbl.unlock(blk, txnum);
+            iter.remove();
+         }
+      }
+      blockCounts.remove(filename);
+   }
+
+   /**
+    * Determines whether a lock held in the first mode
+    * allows everything that the second mode allows.
+    */
+   private static boolean covers(Integer held, int mode) {
+      return held != null && SUPREMUM[held][mode] == held;
    }
 }
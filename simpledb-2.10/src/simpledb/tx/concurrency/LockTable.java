@@ -2,102 +2,399 @@ package simpledb.tx.concurrency;
 
 import simpledb.file.Block;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
- * @author Edward Sciore
+ * A lock is held in one of five modes: the shared (S) and exclusive (X)
+ * modes, and the intention modes IS, IX and SIX, which a transaction
+ * takes on a file before it locks blocks of the file in S or X mode
+ * (SIX being S on the whole file together with IX).
+ * A transaction that already holds a lock and asks for another mode
+ * converts its lock to the weakest mode that covers both.
+ * The table is divided into stripes by the hash of the block,
+ * each with its own latch, so that transactions locking
+ * different blocks rarely contend for the same latch.
+ * <p>
+ * Each locked block has an entry holding the transactions that
+ * hold locks on it and their modes, a bitmap of the modes
+ * currently granted, and a FIFO queue of the requests waiting
+ * for the block.
+ * A request is granted at once if nothing is queued and its
+ * mode is compatible with the granted modes; otherwise it joins
+ * the queue. When a lock is released, the requests at the head
+ * of the block's queue are granted for as long as they are
+ * compatible, and only the threads of those requests are woken.
+ * A request that converts a lock the transaction already holds
+ * is granted at once if it is compatible, and otherwise goes to
+ * the head of the queue, since it only waits for the other
+ * holders to finish.
+ * <p>
+ * The table keeps a wait-for graph, having an edge from each
+ * waiting transaction to each transaction that holds an
+ * incompatible lock on the block or is queued ahead of it.
+ * A new wait can only close a cycle through the waiting
+ * transaction, so the graph is searched from it whenever a
+ * request is queued. If there is a cycle, the youngest
+ * transaction on it (the one with the highest number) is
+ * chosen as the victim: its request is withdrawn and it gets
+ * a {@link LockAbortException}, so that it can roll back.
+ * A request that waits longer than its timeout is also
+ * withdrawn with an exception.
  */
 class LockTable {
-   private static final long MAX_TIME = 10000; // 10 seconds
-   
-   private Map<Block,Integer> locks = new HashMap<Block,Integer>();
-   
    /**
-    * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
+    * The lock modes.
+    */
+   static final int IS = 0, IX = 1, S = 2, SIX = 3, X = 4;
+
+   /**
+    * For each pair of modes, the weakest mode that covers both.
+    */
+   static final int[][] SUPREMUM = {
+      // IS   IX   S    SIX  X
+      { IS,  IX,  S,   SIX, X },  // IS
+      { IX,  IX,  SIX, SIX, X },  // IX
+      { S,   SIX, S,   SIX, X },  // S
+      { SIX, SIX, SIX, SIX, X },  // SIX
+      { X,   X,   X,   X,   X }   // X
+   };
+
+   private static final int MODES = 5;
+   // for each mode, the bitmap of the modes it is compatible with
+   private static final int[] COMPATIBLE = {
+      (1 << IS) | (1 << IX) | (1 << S) | (1 << SIX),  // IS
+      (1 << IS) | (1 << IX),                          // IX
+      (1 << IS) | (1 << S),                           // S
+      (1 << IS),                                      // SIX
+      0                                               // X
+   };
+   private static final int STRIPES = 64;
+
+   private Stripe[] stripes = new Stripe[STRIPES];
+
+   // the wait-for graph; latched after a stripe, never before one
+   private final Object graphLatch = new Object();
+   private Map<Integer,Request> waiting = new HashMap<Integer,Request>();
+   private Map<Integer,Set<Integer>> waitsFor = new HashMap<Integer,Set<Integer>>();
+
+   LockTable() {
+      for (int i=0; i<STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+
+   /**
+    * Grants a lock on the specified block in the specified mode.
+    * If the transaction already holds a lock on the block,
+    * that lock is converted to the specified mode, which must
+    * cover the mode held.
+    * If the lock is not compatible with those of other
+    * transactions, or another request is waiting for the block,
+    * then the calling thread waits its turn.
     * @param blk a reference to the disk block
+    * @param txnum the id of the requesting transaction
+    * @param mode the mode requested
+    * @param held the mode held by the transaction, or -1 if none
+    * @param maxwait the longest time to wait, in milliseconds
     */
-   public synchronized void sLock(Block blk) {
+   void lock(Block blk, int txnum, int mode, int held, long maxwait) {
+      Stripe st = stripeFor(blk);
+      st.latch.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasXlock(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasXlock(blk))
+         Entry e = st.entries.get(blk);
+         if (e == null) {
+            e = new Entry();
+            st.entries.put(blk, e);
+         }
+         if ((e.queue.isEmpty() || held >= 0) && e.compatible(mode, held)) {
+            e.grant(txnum, mode, held);
+            return;
+         }
+         Request r = new Request(txnum, mode, held, st, st.latch.newCondition());
+         if (held >= 0)
+            e.queue.addFirst(r);
+         else
+            e.queue.addLast(r);
+         Request victim = waitFor(e, r);
+         if (victim == r)
+            r.aborted = true;
+         else if (victim != null) {
+            st.latch.unlock();
+            try {
+               abort(victim);
+            }
+            finally {
+               st.latch.lock();
+            }
+         }
+         long nanos = TimeUnit.MILLISECONDS.toNanos(maxwait);
+         boolean interrupted = false;
+         while (!r.granted && !r.aborted && nanos > 0) {
+            try {
+               nanos = r.ready.awaitNanos(nanos);
+            }
+            catch (InterruptedException ex) {
+               interrupted = true;
+               break;
+            }
+         }
+         if (!r.granted) {
+            e.queue.remove(r);
+            grantWaiting(e);  // the requests behind this one may now be compatible
+            if (e.isFree())
+               st.entries.remove(blk);
             throw new LockAbortException();
-         int val = getLockVal(blk);  // will not be negative
-         locks.put(blk, val+1);
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         st.latch.unlock();
       }
    }
-   
+
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
+    * Grants a lock on the specified block in the specified mode,
+    * as {@link #lock(Block, int, int, int, long)} does,
+    * but only if it can be granted at once.
     * @param blk a reference to the disk block
+    * @param txnum the id of the requesting transaction
+    * @param mode the mode requested
+    * @param held the mode held by the transaction, or -1 if none
+    * @return true if the lock was granted
     */
-   synchronized void xLock(Block blk) {
+   boolean tryLock(Block blk, int txnum, int mode, int held) {
+      Stripe st = stripeFor(blk);
+      st.latch.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasOtherSLocks(blk))
-            throw new LockAbortException();
-         locks.put(blk, -1);
+         Entry e = st.entries.get(blk);
+         if (e == null) {
+            e = new Entry();
+            st.entries.put(blk, e);
+         }
+         if ((e.queue.isEmpty() || held >= 0) && e.compatible(mode, held)) {
+            e.grant(txnum, mode, held);
+            return true;
+         }
+         if (e.isFree())
+            st.entries.remove(blk);
+         return false;
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         st.latch.unlock();
       }
    }
-   
+
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
+    * Releases the transaction's lock on the specified block,
+    * and grants the waiting requests that have become compatible.
     * @param blk a reference to the disk block
+    * @param txnum the id of the transaction
+    */
+   void unlock(Block blk, int txnum) {
+      Stripe st = stripeFor(blk);
+      st.latch.lock();
+      try {
+         Entry e = st.entries.get(blk);
+         e.release(txnum);
+         grantWaiting(e);
+         if (e.isFree())
+            st.entries.remove(blk);
+      }
+      finally {
+         st.latch.unlock();
+      }
+   }
+
+   /**
+    * Grants the requests at the head of the entry's queue,
+    * for as long as they are compatible, and updates
+    * the edges of the requests that remain.
     */
-   synchronized void unlock(Block blk) {
-      int val = getLockVal(blk);
-      if (val > 1)
-         locks.put(blk, val-1);
-      else {
-         locks.remove(blk);
-         notifyAll();
+   private void grantWaiting(Entry e) {
+      while (!e.queue.isEmpty()) {
+         Request r = e.queue.peekFirst();
+         if (!e.compatible(r.mode, r.held))
+            break;
+         e.queue.removeFirst();
+         e.grant(r.txnum, r.mode, r.held);
+         r.granted = true;
+         r.ready.signal();
+      }
+      if (e.queue.isEmpty() && e.waiters.isEmpty())
+         return;
+      synchronized (graphLatch) {
+         removeWaits(e);
+         addWaits(e);
       }
    }
-   
-   private boolean hasXlock(Block blk) {
-      return getLockVal(blk) < 0;
+
+   /**
+    * Records the edges of a newly queued request, and
+    * searches for a cycle through its transaction.
+    * @return the victim of the cycle, or null if there is none
+    */
+   private Request waitFor(Entry e, Request r) {
+      synchronized (graphLatch) {
+         removeWaits(e);
+         addWaits(e);
+         List<Integer> cycle = new ArrayList<Integer>();
+         if (!findCycle(r.txnum, r.txnum, new HashSet<Integer>(), cycle))
+            return null;
+         return waiting.get(Collections.max(cycle));
+      }
    }
-   
-   private boolean hasOtherSLocks(Block blk) {
-      return getLockVal(blk) > 1;
+
+   /**
+    * Withdraws the request of a deadlock victim and wakes
+    * its thread, unless it has already been granted.
+    */
+   private void abort(Request victim) {
+      victim.stripe.latch.lock();
+      try {
+         if (!victim.granted && !victim.aborted) {
+            victim.aborted = true;
+            victim.ready.signal();
+         }
+      }
+      finally {
+         victim.stripe.latch.unlock();
+      }
    }
-   
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+
+   /**
+    * Removes the edges of the requests that were
+    * queued for the entry.
+    */
+   private void removeWaits(Entry e) {
+      for (Request r : e.waiters) {
+         if (waiting.get(r.txnum) == r) {
+            waiting.remove(r.txnum);
+            waitsFor.remove(r.txnum);
+         }
+      }
+      e.waiters.clear();
    }
-   
-   private int getLockVal(Block blk) {
-      Integer ival = locks.get(blk);
-      return (ival == null) ? 0 : ival.intValue();
+
+   /**
+    * Computes the edges of the requests queued for the entry:
+    * each waits for the holders of incompatible locks,
+    * and for every other transaction queued ahead of it.
+    */
+   private void addWaits(Entry e) {
+      Set<Integer> ahead = new HashSet<Integer>();
+      for (Request r : e.queue) {
+         ahead.add(r.txnum);
+         if (r.aborted)
+            continue;  // it is about to withdraw
+         Set<Integer> blockers = new HashSet<Integer>(ahead);
+         for (Map.Entry<Integer,Integer> o : e.owners.entrySet())
+            if ((COMPATIBLE[r.mode] & (1 << o.getValue())) == 0)
+               blockers.add(o.getKey());
+         blockers.remove(r.txnum);
+         waiting.put(r.txnum, r);
+         waitsFor.put(r.txnum, blockers);
+         e.waiters.add(r);
+      }
+   }
+
+   /**
+    * Searches the wait-for graph for a path from
+    * the specified transaction back to the start.
+    * @return true if a cycle was found, with its members in path
+    */
+   private boolean findCycle(int start, int tx, Set<Integer> visited, List<Integer> path) {
+      path.add(tx);
+      Set<Integer> next = waitsFor.get(tx);
+      if (next != null) {
+         for (int t : next) {
+            if (t == start)
+               return true;
+            if (visited.add(t) && findCycle(start, t, visited, path))
+               return true;
+         }
+      }
+      path.remove(path.size() - 1);
+      return false;
+   }
+
+   private Stripe stripeFor(Block blk) {
+      int h = blk.hashCode();
+      return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+   }
+
+   /**
+    * A stripe of the table: the entries of the blocks
+    * that hash to it, guarded by its latch.
+    */
+   private static class Stripe {
+      final ReentrantLock latch = new ReentrantLock();
+      final Map<Block,Entry> entries = new HashMap<Block,Entry>();
+   }
+
+   /**
+    * The lock state of one block.
+    */
+   private static class Entry {
+      Map<Integer,Integer> owners = new HashMap<Integer,Integer>(); // the mode held by each transaction
+      int[] holders = new int[MODES]; // the number of holders of each mode
+      int granted = 0;                // the bitmap of the modes that have holders
+      Deque<Request> queue = new ArrayDeque<Request>();
+      List<Request> waiters = new ArrayList<Request>(); // the queued requests as of the last update of the graph
+
+      /**
+       * Determines whether a request is compatible with
+       * the locks held by the other transactions.
+       */
+      boolean compatible(int mode, int held) {
+         int others = granted;
+         if (held >= 0 && holders[held] == 1)
+            others &= ~(1 << held);
+         return (others & ~COMPATIBLE[mode]) == 0;
+      }
+
+      void grant(int txnum, int mode, int held) {
+         if (held >= 0)
+            holders[held]--;
+         holders[mode]++;
+         owners.put(txnum, mode);
+         updateGranted();
+      }
+
+      void release(int txnum) {
+         holders[owners.remove(txnum)]--;
+         updateGranted();
+      }
+
+      boolean isFree() {
+         return granted == 0 && queue.isEmpty();
+      }
+
+      private void updateGranted() {
+         granted = 0;
+         for (int m=0; m<MODES; m++)
+            if (holders[m] > 0)
+               granted |= 1 << m;
+      }
+   }
+
+   /**
+    * A waiting lock request.
+    */
+   private static class Request {
+      final int txnum, mode, held;
+      final Stripe stripe;
+      final Condition ready;
+      boolean granted = false, aborted = false;
+
+      Request(int txnum, int mode, int held, Stripe stripe, Condition ready) {
+         this.txnum = txnum;
+         this.mode = mode;
+         this.held = held;
+         this.stripe = stripe;
+         this.ready = ready;
+      }
    }
 }
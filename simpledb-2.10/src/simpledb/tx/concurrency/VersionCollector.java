@@ -0,0 +1,32 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The background thread that drops the old versions
+ * of blocks once no running snapshot can read them.
+ */
+class VersionCollector implements Runnable {
+   private VersionStore versions;
+   private long interval;
+   
+   /**
+    * Creates a collector for the specified version store.
+    * @param versions the version store
+    * @param interval the number of milliseconds between collections
+    */
+   VersionCollector(VersionStore versions, long interval) {
+      this.versions = versions;
+      this.interval = interval;
+   }
+   
+   public void run() {
+      while (true) {
+         try {
+            Thread.sleep(interval);
+            versions.collect();
+         }
+         catch (InterruptedException e) {
+            return;
+         }
+      }
+   }
+}
@@ -0,0 +1,249 @@
+package simpledb.tx.concurrency;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The store of the old versions of blocks, which lets snapshot
+ * transactions read the database as it was when they began,
+ * without taking locks.
+ * <p>
+ * Before an update transaction first changes a block, it saves a
+ * copy of the block's page, which holds the block's last committed
+ * contents since the transaction has an XLock on it.
+ * Copying a page is wasted if no snapshot reads it, so while no
+ * snapshot is running the version records the old value of each
+ * change instead; a snapshot that reads the version later rebuilds
+ * its page from the block's current contents, and a version that
+ * records many changes copies the page after all.
+ * The version is pending until the transaction ends.
+ * When the transaction commits, the version is stamped with the
+ * timestamp of the commit, which ends the period in which the
+ * version was the committed contents of the block; when it rolls
+ * back, the version is discarded once the block has been restored.
+ * The versions of a block are chained from the newest to the oldest,
+ * so their end timestamps decrease along the chain.
+ * <p>
+ * A snapshot has the timestamp of the latest commit before it began.
+ * It reads the oldest version of a block that ended after its
+ * timestamp, or the current contents of the block if there is none.
+ * Versions that no running snapshot can read are dropped at commit
+ * if no snapshot is running, and otherwise by {@link #collect()},
+ * which a background thread calls at a fixed interval.
+ */
+class VersionStore {
+   private static final long PENDING = Long.MAX_VALUE;
+   private static final int MAX_CHANGES = 64; // the changes a version records before it copies the page
+
+   private Map<Block,Version> chains = new ConcurrentHashMap<Block,Version>();
+   private long lastCommit = 0;  // guarded by this
+   private TreeMap<Long,Integer> snapshots = new TreeMap<Long,Integer>(); // the number of running snapshots of each timestamp; guarded by this
+   private volatile int running = 0;  // the number of running snapshots
+
+   /**
+    * Begins a snapshot of the committed state of the database.
+    * @return the timestamp of the snapshot
+    */
+   synchronized long beginSnapshot() {
+      Integer n = snapshots.get(lastCommit);
+      snapshots.put(lastCommit, (n == null) ? 1 : n + 1);
+      running++;
+      return lastCommit;
+   }
+
+   /**
+    * Ends a snapshot, so that the versions
+    * only it could read can be dropped.
+    * @param ts the timestamp of the snapshot
+    */
+   synchronized void endSnapshot(long ts) {
+      int n = snapshots.get(ts);
+      if (n == 1)
+         snapshots.remove(ts);
+      else
+         snapshots.put(ts, n - 1);
+      running--;
+   }
+
+   /**
+    * Returns true if some snapshot is running.
+    * A snapshot may begin as soon as the method returns,
+    * so the answer only decides whether a new version
+    * copies its page at once.
+    * @return true if a snapshot is running
+    */
+   boolean hasSnapshots() {
+      return running > 0;
+   }
+
+   /**
+    * Saves a pending version of the specified block.
+    * The caller must hold an XLock on the block,
+    * and the monitor of the buffer holding it.
+    * @param blk a reference to the disk block
+    * @param image a copy of the block's committed contents,
+    * or null if the version records the changes instead
+    * @return the new version
+    */
+   synchronized Version save(Block blk, Page image) {
+      Version v = new Version(blk, image, chains.get(blk));
+      chains.put(blk, v);
+      return v;
+   }
+
+   /**
+    * Returns the contents of the buffer's block
+    * as seen by the snapshot having the specified timestamp.
+    * The pages of the versions that record changes are rebuilt first,
+    * from the newest version on.
+    * The caller must hold the monitor of the buffer.
+    * @param buff the buffer holding the block
+    * @param ts the timestamp of the snapshot
+    * @return the version of the block seen by the snapshot,
+    * or null if it sees the current contents
+    */
+   Page read(Buffer buff, long ts) {
+      Version head = chains.get(buff.block());
+      Version seen = null;
+      for (Version v = head; v != null && v.end > ts; v = v.next)
+         seen = v;
+      if (seen == null)
+         return null;
+      Page later = null;  // the contents that the next older version replaced
+      for (Version v = head; v != seen.next; v = v.next) {
+         if (v.image == null)
+            v.rebuild((later == null) ? buff.copyContents() : later.copy());
+         later = v.image;
+      }
+      return seen.image;
+   }
+
+   /**
+    * Stamps the pending versions of a committing
+    * transaction with a new commit timestamp.
+    * The versions are dropped instead if no snapshot is running.
+    * The caller must still hold its XLocks, so each
+    * version is the newest one of its block.
+    * @param versions the versions saved by the transaction
+    */
+   synchronized void commit(Collection<Version> versions) {
+      if (versions.isEmpty())
+         return;
+      long ts = lastCommit + 1;
+      for (Version v : versions) {
+         if (snapshots.isEmpty())
+            chains.remove(v.blk);  // no snapshot can read any version of the block
+         else
+            v.end = ts;
+      }
+      lastCommit = ts;
+   }
+
+   /**
+    * Discards the pending versions of a transaction that
+    * rolled back, after its changes have been undone.
+    * The caller must still hold its XLocks.
+    * @param versions the versions saved by the transaction
+    */
+   synchronized void discard(Collection<Version> versions) {
+      for (Version v : versions) {
+         if (v.next == null)
+            chains.remove(v.blk);
+         else
+            chains.put(v.blk, v.next);
+      }
+   }
+
+   /**
+    * Drops the versions that ended before
+    * the oldest running snapshot began.
+    */
+   synchronized void collect() {
+      long oldest = snapshots.isEmpty() ? lastCommit : snapshots.firstKey();
+      Iterator<Version> iter = chains.values().iterator();
+      while (iter.hasNext()) {
+         Version v = iter.next();
+         if (v.end <= oldest) {
+            iter.remove();
+            continue;
+         }
+         while (v.next != null && v.next.end > oldest)
+            v = v.next;
+         v.next = null;
+      }
+   }
+
+   /**
+    * A saved copy of a block, or the changes
+    * that replaced the saved contents.
+    * The page and the changes are guarded by
+    * the monitor of the buffer holding the block.
+    */
+   static class Version {
+      final Block blk;
+      Page image;                   // the saved contents, or null if they are rebuilt from the changes
+      private int count = 0;        // the number of changes recorded
+      private int[] offsets;        // the offsets of the changes
+      private Object[] oldvals;     // the value at each offset before its change
+      volatile long end = PENDING;  // the timestamp of the commit that replaced it
+      volatile Version next;        // the next older version
+
+      Version(Block blk, Page image, Version next) {
+         this.blk = blk;
+         this.image = image;
+         this.next = next;
+      }
+
+      /**
+       * Records the value at the specified offset of
+       * the buffer's page, before the value is changed.
+       * Once enough changes have been recorded, the saved
+       * contents are rebuilt instead, from a copy of the page.
+       * Does nothing if the contents have been saved.
+       * @param buff the buffer holding the block, which is not yet changed
+       * @param offset the offset of the value
+       * @param oldval the value at the offset
+       */
+      void record(Buffer buff, int offset, Object oldval) {
+         if (image != null)
+            return;
+         if (count == MAX_CHANGES) {
+            rebuild(buff.copyContents());
+            return;
+         }
+         if (offsets == null) {
+            offsets = new int[8];
+            oldvals = new Object[8];
+         }
+         else if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * count);
+            oldvals = Arrays.copyOf(oldvals, 2 * count);
+         }
+         offsets[count] = offset;
+         oldvals[count] = oldval;
+         count++;
+      }
+
+      /**
+       * Saves the contents of the block from the
+       * contents that replaced them, by undoing the
+       * recorded changes from the latest one back.
+       * @param later the contents that replaced this version, which are changed
+       */
+      private void rebuild(Page later) {
+         for (int i=count-1; i>=0; i--) {
+            if (oldvals[i] instanceof Integer)
+               later.setInt(offsets[i], (Integer) oldvals[i]);
+            else
+               later.setString(offsets[i], (String) oldvals[i]);
+         }
+         image = later;
+         offsets = null;
+         oldvals = null;
+         count = 0;
+      }
+   }
+}
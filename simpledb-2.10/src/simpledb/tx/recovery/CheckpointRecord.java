@@ -1,34 +1,46 @@
 package simpledb.tx.recovery;
 
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.*;
 
 /**
- * The CHECKPOINT log record.
+ * The CHECKPOINT log record, which ends a fuzzy checkpoint.
+ * The record holds the LSN at which the checkpoint began;
+ * the active transactions and dirty pages as of that LSN
+ * are in the CHECKPOINT_TABLES records written just before it.
  * @author Edward Sciore
  */
 class CheckpointRecord implements LogRecord {
+   private long beginLSN;
    
    /**
-    * Creates a quiescent checkpoint record.
+    * Creates a checkpoint record.
+    * @param beginLSN the end of the log when the checkpoint began
     */
-   public CheckpointRecord() {}
+   public CheckpointRecord(long beginLSN) {
+      this.beginLSN = beginLSN;
+   }
    
    /**
-    * Creates a log record by reading no other values 
+    * Creates a log record by reading one other value 
     * from the basic log record.
     * @param rec the basic log record
     */
-   public CheckpointRecord(BasicLogRecord rec) {}
+   public CheckpointRecord(BasicLogRecord rec) {
+      beginLSN = rec.nextLong();
+   }
    
    /** 
     * Writes a checkpoint record to the log.
     * This log record contains the CHECKPOINT operator,
-    * and nothing else.
-    * @return the LSN of the last log value
+    * followed by the LSN at which the checkpoint began.
+    * @return the LSN of the log record
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {CHECKPOINT};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return logMgr.reserve(intSize(CHECKPOINT) + longSize(beginLSN))
+                   .putInt(CHECKPOINT).putLong(beginLSN).end();
    }
    
    public int op() {
@@ -43,13 +55,36 @@ class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
    
+   /**
+    * Returns the LSN at which the checkpoint began,
+    * where the analysis pass of recovery starts reading.
+    * @return the LSN at which the checkpoint began
+    */
+   public long beginLSN() {
+      return beginLSN;
+   }
+   
+   public Block block() {
+      return null;
+   }
+   
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {}
+   
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(Buffer buff, int txnum) {}
    
    public String toString() {
-      return "<CHECKPOINT>";
+      return "<CHECKPOINT " + beginLSN + ">";
    }
 }
@@ -0,0 +1,151 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogWriter;
+import static simpledb.log.LogWriter.*;
+import java.util.*;
+
+/**
+ * The CHECKPOINT_TABLES log record, which holds part of the
+ * transaction table and the dirty page table of a fuzzy checkpoint.
+ * A log record cannot be larger than a log block,
+ * so a checkpoint writes as many of these records as its tables need.
+ */
+class CheckpointTablesRecord implements LogRecord {
+   private Map<Integer,Long> txs = new HashMap<Integer,Long>();
+   private Map<Block,Long> pages = new HashMap<Block,Long>();
+   private static final int COUNT_SIZE = intSize(Integer.MAX_VALUE); // the largest size of a count
+   private int size = intSize(CHECKPOINT_TABLES) + 2 * COUNT_SIZE; // an upper bound while filling
+   
+   /**
+    * Creates an empty record, to be filled with
+    * {@link #addTx(int, long) addTx} and {@link #addPage(Block, long) addPage}.
+    */
+   public CheckpointTablesRecord() {}
+   
+   /**
+    * Creates a log record by reading the entries of the two tables
+    * from the basic log record.
+    * @param rec the basic log record
+    */
+   public CheckpointTablesRecord(BasicLogRecord rec) {
+      int ntxs = rec.nextInt();
+      for (int i=0; i<ntxs; i++) {
+         int txnum = rec.nextInt();
+         txs.put(txnum, rec.nextLong());
+      }
+      int npages = rec.nextInt();
+      for (int i=0; i<npages; i++) {
+         String filename = logMgr.fileName(rec.nextInt());
+         Block blk = new Block(filename, rec.nextInt());
+         pages.put(blk, rec.nextLong());
+      }
+   }
+   
+   /**
+    * Adds an active transaction to the record,
+    * unless the record has no room left for it.
+    * @param txnum the id of the transaction
+    * @param startLSN the LSN of the transaction's START record, or an earlier LSN
+    * @return false if the record is full
+    */
+   public boolean addTx(int txnum, long startLSN) {
+      int n = intSize(txnum) + longSize(startLSN);
+      if (size + n > logMgr.maxRecordSize())
+         return false;
+      txs.put(txnum, startLSN);
+      size += n;
+      return true;
+   }
+   
+   /**
+    * Adds a dirty page to the record,
+    * unless the record has no room left for it.
+    * @param blk the block of the page
+    * @param recoveryLSN the LSN of the first unwritten change to the page
+    * @return false if the record is full
+    */
+   public boolean addPage(Block blk, long recoveryLSN) {
+      int n = intSize(logMgr.fileId(blk.fileName())) + intSize(blk.number()) + longSize(recoveryLSN);
+      if (size + n > logMgr.maxRecordSize())
+         return false;
+      pages.put(blk, recoveryLSN);
+      size += n;
+      return true;
+   }
+   
+   /**
+    * Returns the active transactions in the record,
+    * each with a lower bound on the LSN of its START record.
+    * @return the active transactions
+    */
+   public Map<Integer,Long> activeTxs() {
+      return txs;
+   }
+   
+   /**
+    * Returns the dirty pages in the record,
+    * each with its recovery LSN.
+    * @return the dirty pages
+    */
+   public Map<Block,Long> dirtyPages() {
+      return pages;
+   }
+   
+   /** 
+    * Writes a checkpoint tables record to the log.
+    * This log record contains the CHECKPOINT_TABLES operator,
+    * followed by the number of transactions and their ids and start LSNs,
+    * and then the number of pages and their file ids, block numbers
+    * and recovery LSNs.
+    * @return the LSN of the log record
+    */
+   public long writeToLog() {
+      int exact = size - 2 * COUNT_SIZE + intSize(txs.size()) + intSize(pages.size());
+      LogWriter w = logMgr.reserve(exact).putInt(CHECKPOINT_TABLES).putInt(txs.size());
+      for (Map.Entry<Integer,Long> e : txs.entrySet())
+         w.putInt(e.getKey()).putLong(e.getValue());
+      w.putInt(pages.size());
+      for (Map.Entry<Block,Long> e : pages.entrySet())
+         w.putInt(logMgr.fileId(e.getKey().fileName())).putInt(e.getKey().number()).putLong(e.getValue());
+      return w.end();
+   }
+   
+   public int op() {
+      return CHECKPOINT_TABLES;
+   }
+   
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   public Block block() {
+      return null;
+   }
+   
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(Buffer buff, int txnum) {}
+   
+   public String toString() {
+      return "<CHECKPOINT_TABLES " + txs + " " + pages + ">";
+   }
+}
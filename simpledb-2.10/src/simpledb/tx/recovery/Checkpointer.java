@@ -0,0 +1,50 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+
+/**
+ * The background checkpoint thread.
+ * The checkpointer wakes up at a fixed interval and takes a
+ * fuzzy checkpoint if anything has been logged since the last one,
+ * which keeps the time needed to recover from a crash bounded.
+ * A failed checkpoint is retried after the next interval.
+ * The failure is reported on the console when it first occurs,
+ * and again once a checkpoint succeeds.
+ */
+class Checkpointer implements Runnable {
+   private long interval;
+   private String failure = null; // the failure of the previous checkpoint, if any
+   
+   /**
+    * Creates a checkpointer.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   Checkpointer(long interval) {
+      this.interval = interval;
+   }
+   
+   public void run() {
+      long lastEnd = -1;
+      while (true) {
+         try {
+            Thread.sleep(interval);
+            long end = SimpleDB.logMgr().endLSN();
+            if (end != lastEnd) {
+               RecoveryMgr.checkpoint();
+               lastEnd = SimpleDB.logMgr().endLSN();
+               if (failure != null)
+                  System.err.println("checkpointer: checkpoints taken again");
+               failure = null;
+            }
+         }
+         catch (InterruptedException e) {
+            return;
+         }
+         catch (RuntimeException e) {
+            if (!e.toString().equals(failure))
+               System.err.println("checkpointer: checkpoint failed, will retry: " + e);
+            failure = e.toString();
+         }
+      }
+   }
+}
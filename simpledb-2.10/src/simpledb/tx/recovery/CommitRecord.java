@@ -1,6 +1,9 @@
 package simpledb.tx.recovery;
 
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.intSize;
 
 /**
  * The COMMIT log record
@@ -29,11 +32,10 @@ class CommitRecord implements LogRecord {
     * Writes a commit record to the log.
     * This log record contains the COMMIT operator,
     * followed by the transaction id.
-    * @return the LSN of the last log value
+    * @return the LSN of the log record
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {COMMIT, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return logMgr.reserve(intSize(COMMIT) + intSize(txnum)).putInt(COMMIT).putInt(txnum).end();
    }
    
    public int op() {
@@ -44,11 +46,25 @@ class CommitRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return null;
+   }
+   
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because a commit record
+    * contains no redo information.
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {}
+   
    /**
     * Does nothing, because a commit record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(Buffer buff, int txnum) {}
    
    public String toString() {
       return "<COMMIT " + txnum + ">";
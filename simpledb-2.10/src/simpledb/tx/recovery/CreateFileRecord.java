@@ -0,0 +1,88 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.intSize;
+
+/**
+ * The CREATE_FILE log record, which notes that a transaction
+ * has created a file of a new table or index.
+ * The transaction does not log its changes to the file;
+ * if it does not commit, the whole file is deleted instead.
+ */
+class CreateFileRecord implements LogRecord {
+   private int txnum;
+   private String filename;
+   
+   /**
+    * Creates a new create file log record.
+    * @param txnum the ID of the specified transaction
+    * @param filename the name of the new file
+    */
+   public CreateFileRecord(int txnum, String filename) {
+      this.txnum = txnum;
+      this.filename = filename;
+   }
+   
+   /**
+    * Creates a log record by reading two other values from the log.
+    * @param rec the basic log record
+    */
+   public CreateFileRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      filename = logMgr.fileName(rec.nextInt());
+   }
+   
+   /** 
+    * Writes a create file record to the log.
+    * This log record contains the CREATE_FILE operator,
+    * followed by the transaction id and the id of the file.
+    * @return the LSN of the log record
+    */
+   public long writeToLog() {
+      int fileid = logMgr.fileId(filename);
+      return logMgr.reserve(intSize(CREATE_FILE) + intSize(txnum) + intSize(fileid))
+                   .putInt(CREATE_FILE).putInt(txnum).putInt(fileid).end();
+   }
+   
+   public int op() {
+      return CREATE_FILE;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+   
+   /**
+    * Returns the name of the new file.
+    * @return the name of the file
+    */
+   public String fileName() {
+      return filename;
+   }
+   
+   public Block block() {
+      return null;
+   }
+   
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because the changes to a new file
+    * are not redone; the file is forced when its transaction commits.
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {}
+   
+   /**
+    * Does nothing; the recovery manager deletes the file
+    * of an unfinished transaction itself.
+    */
+   public void undo(Buffer buff, int txnum) {}
+   
+   public String toString() {
+      return "<CREATE_FILE " + txnum + " " + filename + ">";
+   }
+}
@@ -1,5 +1,7 @@
 package simpledb.tx.recovery;
 
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
@@ -9,11 +11,12 @@ import simpledb.server.SimpleDB;
  */
 public interface LogRecord {
    /**
-    * The six different types of log record
+    * The eight different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
+      SETINT = 4, SETSTRING = 5,
+      CHECKPOINT_TABLES = 6, CREATE_FILE = 7;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +24,7 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
    
    /**
     * Returns the log record's type. 
@@ -37,10 +40,38 @@ public interface LogRecord {
    int txNumber();
    
    /**
-    * Undoes the operation encoded by this log record.
+    * Returns the block modified by the log record,
+    * or null if the record does not modify a block.
+    * @return the modified block, or null
+    */
+   Block block();
+   
+   /**
+    * Returns the LSN of the transaction's record that
+    * is undone after this one, or -1 if the record
+    * is not part of a transaction's chain of updates.
+    * @return the previous LSN of the record
+    */
+   long prevLSN();
+   
+   /**
+    * Redoes the operation encoded by this log record,
+    * unless the page it modified already reflects it.
+    * The only log record types for which this method
+    * does anything interesting are SETINT and SETSTRING.
+    * @param buff a buffer pinned to the record's block
+    * @param txnum the id of the transaction that is performing the redo.
+    * @param lsn the LSN of this log record
+    */
+   void redo(Buffer buff, int txnum, long lsn);
+   
+   /**
+    * Undoes the operation encoded by this log record,
+    * logging a compensation record for the change.
     * The only log record types for which this method
     * does anything interesting are SETINT and SETSTRING.
+    * @param buff a buffer pinned to the record's block
     * @param txnum the id of the transaction that is performing the undo.
     */
-   void undo(int txnum);
+   void undo(Buffer buff, int txnum);
 }
\ No newline at end of file
@@ -7,14 +7,39 @@ import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
+ * from the log in reverse order, or forwards from a given LSN.
  * Unlike the similar class 
  * {@link simpledb.log.LogIterator LogIterator},  
  * this class understands the meaning of the log records.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+   private Iterator<BasicLogRecord> iter;
+   private long lsn = -1;
+   
+   /**
+    * Creates an iterator that reads the log backwards from its end.
+    */
+   LogRecordIterator() {
+      iter = SimpleDB.logMgr().iterator();
+   }
+   
+   /**
+    * Creates an iterator that reads the log forwards,
+    * starting with the record at the specified LSN.
+    * @param start the LSN of the first record
+    */
+   LogRecordIterator(long start) {
+      iter = SimpleDB.logMgr().forwardIterator(start);
+   }
+   
+   /**
+    * Returns the LSN of the record most recently returned by {@link #next()}.
+    * @return the LSN of the current record
+    */
+   long lsn() {
+      return lsn;
+   }
    
    public boolean hasNext() {
       return iter.hasNext();
@@ -22,19 +47,31 @@ class LogRecordIterator implements Iterator<LogRecord> {
    
    /**
     * Constructs a log record from the values in the 
-    * current basic log record.
+    * next basic log record.
+    * @return the next log record, or null if no more records
+    */
+   public LogRecord next() {
+      BasicLogRecord rec = iter.next();
+      lsn = rec.lsn();
+      return create(rec);
+   } 
+   
+   /**
+    * Constructs a log record from the values in a basic log record.
     * The method first reads an integer, which denotes
     * the type of the log record.  Based on that type,
     * the method calls the appropriate LogRecord constructor
     * to read the remaining values.
-    * @return the next log record, or null if no more records
+    * @param rec the basic log record
+    * @return the log record, or null if its type is unknown
     */
-   public LogRecord next() {
-      BasicLogRecord rec = iter.next();
+   static LogRecord create(BasicLogRecord rec) {
       int op = rec.nextInt();
       switch (op) {
          case CHECKPOINT:
             return new CheckpointRecord(rec);
+         case CHECKPOINT_TABLES:
+            return new CheckpointTablesRecord(rec);
          case START:
             return new StartRecord(rec);
          case COMMIT:
@@ -45,10 +82,12 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case CREATE_FILE:
+            return new CreateFileRecord(rec);
          default:
             return null;
       }
-   } 
+   }
    
    public void remove() {
       throw new UnsupportedOperationException();
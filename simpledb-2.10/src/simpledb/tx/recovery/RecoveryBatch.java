@@ -0,0 +1,100 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch of log records that recovery redoes or undoes in parallel.
+ * The records are bucketed by block. When the batch is applied,
+ * each block is handled by one task on a fork-join pool, which pins
+ * the block once and applies its records in the order they were added.
+ * Records of different blocks touch different pages, so the order
+ * between blocks does not matter; batches are applied one after another,
+ * so the records of a block are applied in log order across batches too.
+ */
+class RecoveryBatch {
+   private static final int MAX_RECORDS = 8192; // records held before the batch is applied
+   private ForkJoinPool pool;
+   private int txnum;
+   private boolean redo;
+   private Map<Block,PageTask> tasks = new HashMap<Block,PageTask>();
+   private int size = 0;
+
+   /**
+    * Creates an empty batch.
+    * @param pool the pool that applies the records
+    * @param txnum the id of the transaction that is doing the recovery
+    * @param redo true if the records are to be redone, false if undone
+    */
+   RecoveryBatch(ForkJoinPool pool, int txnum, boolean redo) {
+      this.pool = pool;
+      this.txnum = txnum;
+      this.redo = redo;
+   }
+
+   /**
+    * Adds a record that modifies a block to the batch,
+    * applying the batch if it is full.
+    * @param rec the log record
+    * @param lsn the LSN of the record
+    */
+   void add(LogRecord rec, long lsn) {
+      PageTask task = tasks.get(rec.block());
+      if (task == null) {
+         task = new PageTask(rec.block());
+         tasks.put(rec.block(), task);
+      }
+      task.recs.add(rec);
+      task.lsns.add(lsn);
+      if (++size == MAX_RECORDS)
+         apply();
+   }
+
+   /**
+    * Applies the records of the batch, and waits for them to finish.
+    * The batch is then empty.
+    */
+   void apply() {
+      for (PageTask task : tasks.values())
+         pool.execute(task);
+      for (PageTask task : tasks.values())
+         task.join();
+      tasks.clear();
+      size = 0;
+   }
+
+   /**
+    * The records of one block in the batch.
+    */
+   @SuppressWarnings("serial")
+   private class PageTask extends RecursiveAction {
+      private Block blk;
+      private List<LogRecord> recs = new ArrayList<LogRecord>();
+      private List<Long> lsns = new ArrayList<Long>();
+
+      PageTask(Block blk) {
+         this.blk = blk;
+      }
+
+      protected void compute() {
+         BufferMgr buffMgr = SimpleDB.bufferMgr();
+         Buffer buff = buffMgr.pin(blk);
+         try {
+            for (int i=0; i<recs.size(); i++) {
+               if (redo)
+                  recs.get(i).redo(buff, txnum, lsns.get(i));
+               else
+                  recs.get(i).undo(buff, txnum);
+            }
+         }
+         finally {
+            buffMgr.unpin(buff);
+         }
+      }
+   }
+}
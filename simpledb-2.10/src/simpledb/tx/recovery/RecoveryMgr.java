@@ -3,131 +3,534 @@ package simpledb.tx.recovery;
 import static simpledb.tx.recovery.LogRecord.*;
 import simpledb.file.Block;
 import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.log.LogMgr;
+import simpledb.log.LogReader;
 import simpledb.server.SimpleDB;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * <p>
+ * Recovery follows ARIES. Update records hold both the old and the new
+ * value, and every page stores the LSN of the latest record applied to it.
+ * The buffer manager may write a modified page at any time, once the log
+ * is on disk up to the page's LSN (steal), and a transaction does not
+ * write its pages when it commits (no-force): committing costs only a
+ * sequential force of the log. After a crash, recovery therefore
+ * analyzes the log to find the unfinished transactions, redoes every
+ * update since the last checkpoint whose LSN exceeds its page's LSN,
+ * and then undoes the unfinished transactions.
+ * Undoing an update logs a compensation record, so that an undo
+ * is itself redone after a crash.
+ * <p>
+ * Checkpoints are fuzzy: they do not stop transactions or write
+ * every dirty page. A checkpoint notes the end of the log, takes
+ * a snapshot of the active transactions and of the dirty page table,
+ * writes both to the log, and ends with a CHECKPOINT record.
+ * Recovery starts its analysis where the last checkpoint began,
+ * so restart time depends on the work done since then.
+ * Redo and undo are applied in parallel, one task per page,
+ * so restart time also falls with the number of processors.
+ * Each checkpoint also writes the pages that have been dirty since
+ * before the previous one, so that redo never has to go back far,
+ * and recycles the log that no recovery can need any more.
+ * <p>
+ * Each update record holds the LSN of the transaction's previous
+ * update, so a rollback follows the transaction's own chain of
+ * records instead of reading the whole log back to its START record.
+ * The most recent updates are also kept in memory,
+ * so a short transaction is rolled back without reading the log at all.
+ * <p>
+ * A transaction that creates a table or index logs only a CREATE_FILE
+ * record for each of its files, and its changes to the files, such as
+ * the initial load, are not logged; the files are forced instead
+ * when the transaction commits, and deleted if it does not.
+ * <p>
+ * A read-only transaction changes nothing that needs recovering,
+ * so it writes no log records at all, not even START and COMMIT.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   private static final int UNDO_BUFFER = 32; // the updates kept in memory for rollback
+   // The active transactions, with the LSNs of their START records.
+   // A transaction's START, COMMIT and ROLLBACK records are written
+   // under the read lock, and a checkpoint takes its snapshot under the
+   // write lock, so every such record is either reflected in the snapshot
+   // or found by the analysis pass.
+   private static final Map<Integer,Long> activeTxs = new ConcurrentHashMap<Integer,Long>();
+   private static final ReadWriteLock txTableLock = new ReentrantReadWriteLock();
+   private static final Object checkpointLatch = new Object(); // one checkpoint at a time
+   private static long lastCheckpoint = 0; // where the last checkpoint began
+   // the files created by transactions that have not yet finished
+   private static final Set<String> filesBeingCreated =
+         Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
    private int txnum;
+   private long startLSN;
+   private long lastLSN; // the transaction's latest record not yet undone
+   private ArrayDeque<LogRecord> recentUpdates = new ArrayDeque<LogRecord>();
+   private Set<String> createdFiles = new HashSet<String>(); // the files whose changes are not logged
+   private boolean readOnly;
 
    /**
     * Creates a recovery manager for the specified transaction.
     * @param txnum the ID of the specified transaction
     */
    public RecoveryMgr(int txnum) {
+      this(txnum, false);
+   }
+
+   /**
+    * Creates a recovery manager for the specified transaction,
+    * which logs nothing if the transaction is read-only.
+    * A read-only transaction may only modify temporary files.
+    * @param txnum the ID of the specified transaction
+    * @param readOnly true if the transaction is read-only
+    */
+   public RecoveryMgr(int txnum, boolean readOnly) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      this.readOnly = readOnly;
+      if (readOnly)
+         return;
+      txTableLock.readLock().lock();
+      try {
+         startLSN = new StartRecord(txnum).writeToLog();
+         activeTxs.put(txnum, startLSN);
+         lastLSN = startLSN;
+      }
+      finally {
+         txTableLock.readLock().unlock();
+      }
    }
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * The modified buffers are not written; the log holds
+    * enough to redo them. The exception is the files that
+    * the transaction created, which are written and forced first.
+    * A read-only transaction does nothing.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
+      if (readOnly)
+         return;
+      for (String filename : createdFiles) {
+         SimpleDB.bufferMgr().flushFile(filename);
+         SimpleDB.fileMgr().force(filename);
+      }
+      long lsn = end(new CommitRecord(txnum));
       SimpleDB.logMgr().flush(lsn);
+      filesBeingCreated.removeAll(createdFiles);
    }
 
    /**
-    * Writes a rollback record to the log, and flushes it to disk.
+    * Undoes the transaction's updates and deletes the files it
+    * created, then writes a rollback record to the log,
+    * and flushes it to disk.
+    * A read-only transaction does nothing.
     */
    public void rollback() {
+      if (readOnly)
+         return;
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
+      for (String filename : createdFiles)
+         dropFile(filename);
+      long lsn = end(new RollbackRecord(txnum));
       SimpleDB.logMgr().flush(lsn);
+      filesBeingCreated.removeAll(createdFiles);
    }
 
    /**
     * Recovers uncompleted transactions from the log,
-    * then writes a quiescent checkpoint record to the log and flushes it.
+    * then writes every dirty buffer and takes a checkpoint,
+    * so that the next recovery starts from here.
     */
    public void recover() {
       doRecover();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      SimpleDB.bufferMgr().flushAll();
+      checkpoint();
+   }
+
+   /**
+    * Takes a fuzzy checkpoint, while transactions keep running.
+    * The pages dirty since before the previous checkpoint are written
+    * first. Then the end of the log and the transaction table are read
+    * together, the dirty page table is read, and the database files are
+    * forced, so that a page missing from the table is on disk.
+    * The tables are written to the log, followed by a CHECKPOINT record
+    * holding the LSN where the checkpoint began, and the log is flushed.
+    * Finally, the log before the oldest LSN that recovery could need
+    * (the beginning of the checkpoint, the START record of an active
+    * transaction, or the first unwritten change to a dirty page)
+    * is recycled.
+    */
+   public static void checkpoint() {
+      synchronized (checkpointLatch) {
+         LogMgr logMgr = SimpleDB.logMgr();
+         BufferMgr bufferMgr = SimpleDB.bufferMgr();
+         bufferMgr.flushDirtyBefore(lastCheckpoint);
+         long begin;
+         Map<Integer,Long> txs;
+         txTableLock.writeLock().lock();
+         try {
+            begin = logMgr.endLSN();
+            txs = new HashMap<Integer,Long>(activeTxs);
+         }
+         finally {
+            txTableLock.writeLock().unlock();
+         }
+         Map<Block,Long> pages = bufferMgr.dirtyPages();
+         SimpleDB.fileMgr().forceAll();
+
+         CheckpointTablesRecord rec = new CheckpointTablesRecord();
+         for (Map.Entry<Integer,Long> e : txs.entrySet())
+            if (!rec.addTx(e.getKey(), e.getValue())) {
+               rec.writeToLog();
+               rec = new CheckpointTablesRecord();
+               rec.addTx(e.getKey(), e.getValue());
+            }
+         for (Map.Entry<Block,Long> e : pages.entrySet())
+            if (!rec.addPage(e.getKey(), e.getValue())) {
+               rec.writeToLog();
+               rec = new CheckpointTablesRecord();
+               rec.addPage(e.getKey(), e.getValue());
+            }
+         rec.writeToLog();
+         long lsn = new CheckpointRecord(begin).writeToLog();
+         logMgr.flush(lsn);
+
+         long needed = begin;
+         for (long l : txs.values())
+            needed = Math.min(needed, l);
+         for (long l : pages.values())
+            needed = Math.min(needed, l);
+         logMgr.truncate(needed);
+         lastCheckpoint = begin;
+      }
+   }
+
+   /**
+    * Starts a daemon thread that takes a checkpoint at the
+    * specified interval, whenever the log has grown since the last one.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   public static void startCheckpointer(long interval) {
+      Thread t = new Thread(new Checkpointer(interval), "simpledb-checkpointer");
+      t.setDaemon(true);
+      t.start();
+   }
 
+   /**
+    * Notes that the transaction creates the specified file,
+    * while holding the lock on the end of the file.
+    * If the file is empty, the transaction becomes its creator, and
+    * a CREATE_FILE record is written to the log; temporary files
+    * are not logged in any case.
+    * @param filename the name of the file
+    */
+   public void creating(String filename) {
+      if (createdFiles.contains(filename) || filename.startsWith("temp")
+            || SimpleDB.fileMgr().size(filename) > 0)
+         return;
+      new CreateFileRecord(txnum, filename).writeToLog();
+      filesBeingCreated.add(filename);
+      createdFiles.add(filename);
    }
 
    /**
-    * Writes a setint record to the log, and returns its lsn.
-    * Updates to temporary files are not logged; instead, a
-    * "dummy" negative lsn is returned.
+    * Determines whether the transaction created the specified file,
+    * in which case its changes to the file are not logged.
+    * @param filename the name of the file
+    * @return true if the transaction is the file's creator
+    */
+   public boolean isCreator(String filename) {
+      return createdFiles.contains(filename);
+   }
+
+   /**
+    * Determines whether the specified file is being created
+    * by a transaction that has not yet committed or rolled back.
+    * @param filename the name of the file
+    * @return true if the file's creator has not finished
+    */
+   public static boolean isBeingCreated(String filename) {
+      return filesBeingCreated.contains(filename);
+   }
+
+   /**
+    * Writes a setint record holding the old and new values
+    * to the log, and returns its lsn.
+    * Updates to temporary files, and to files that the transaction
+    * created, are not logged; instead, a "dummy" negative lsn is returned.
     * @param buff the buffer containing the page
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
-      if (isTempBlock(blk))
+      if (isTempBlock(blk) || createdFiles.contains(blk.fileName()))
          return -1;
       else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+         return logUpdate(new SetIntRecord(txnum, lastLSN, blk, offset, oldval, newval, false));
    }
 
    /**
-    * Writes a setstring record to the log, and returns its lsn.
-    * Updates to temporary files are not logged; instead, a
-    * "dummy" negative lsn is returned.
+    * Writes a setstring record holding the old and new values
+    * to the log, and returns its lsn.
+    * Updates to temporary files, and to files that the transaction
+    * created, are not logged; instead, a "dummy" negative lsn is returned.
     * @param buff the buffer containing the page
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
-      if (isTempBlock(blk))
+      if (isTempBlock(blk) || createdFiles.contains(blk.fileName()))
          return -1;
       else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+         return logUpdate(new SetStringRecord(txnum, lastLSN, blk, offset, oldval, newval, false));
+   }
+
+   /**
+    * Writes an update record to the log, and remembers it
+    * as the transaction's latest record.
+    * @return the LSN of the record
+    */
+   private long logUpdate(LogRecord rec) {
+      lastLSN = rec.writeToLog();
+      if (recentUpdates.size() == UNDO_BUFFER)
+         recentUpdates.removeFirst();
+      recentUpdates.addLast(rec);
+      return lastLSN;
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
-    * until it finds the transaction's START record.
+    * The updates kept in memory are undone first, most recent first.
+    * The method then follows the chain of previous LSNs back
+    * from the oldest of them, reading each record from the log
+    * and undoing it, until the chain reaches the START record.
+    * The latest LSN is moved back past each record once it is undone,
+    * so a rollback that fails part way (for example, because no
+    * buffer is available) can be retried from where it stopped.
     */
    private void doRollback() {
-      Iterator<LogRecord> iter = new LogRecordIterator();
-      while (iter.hasNext()) {
-         LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(txnum);
+      while (!recentUpdates.isEmpty()) {
+         LogRecord rec = recentUpdates.peekLast();
+         undo(rec);
+         recentUpdates.removeLast();
+         lastLSN = rec.prevLSN();
+      }
+      if (lastLSN > startLSN) {
+         LogReader reader = SimpleDB.logMgr().reader();
+         while (lastLSN > startLSN) {
+            LogRecord rec = LogRecordIterator.create(reader.record(lastLSN));
+            undo(rec);
+            lastLSN = rec.prevLSN();
          }
       }
    }
 
    /**
-    * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * Undoes an update record of this transaction,
+    * pinning its block for the duration.
+    */
+   private void undo(LogRecord rec) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(rec.block());
+      rec.undo(buff, txnum);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Does a complete database recovery, in three passes.
+    * The analysis pass finds the last CHECKPOINT record,
+    * and reads the log forwards from where that checkpoint began,
+    * rebuilding the transaction table (the transactions that did
+    * not commit or roll back, each with the LSN of its START record)
+    * and the dirty page table (each page that may have unwritten
+    * changes, with the LSN of the first of them).
+    * The redo pass reads the log forwards from the oldest LSN in
+    * the dirty page table, repeating the updates to dirty pages
+    * that the pages do not reflect.
+    * The undo pass reads the log backwards to the oldest START record
+    * of an unfinished transaction, undoing the updates of the
+    * unfinished transactions that a compensation record has not
+    * already undone, and each of them is then given a
+    * ROLLBACK record; the files they created are deleted.
+    * Both passes collect their records into batches,
+    * which are applied page by page in parallel.
+    * The records that this transaction has written,
+    * starting with its own START record, are skipped.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
+      long begin = 0, checkpoint = -1;
+      LogRecordIterator iter = new LogRecordIterator();
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(txnum);
+         if (rec.op() == CHECKPOINT && iter.lsn() < startLSN) {
+            begin = ((CheckpointRecord) rec).beginLSN();
+            checkpoint = iter.lsn();
+            break;
+         }
+      }
+
+      Map<Integer,Long> unfinishedTxs = new HashMap<Integer,Long>();
+      Set<Integer> finishedTxs = new HashSet<Integer>();
+      Map<Block,Long> dirtyPages = new HashMap<Block,Long>();
+      iter = new LogRecordIterator(begin);
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         long lsn = iter.lsn();
+         if (lsn >= startLSN)
+            break;
+         int tx = rec.txNumber();
+         if (rec.op() == CHECKPOINT_TABLES) {
+            if (lsn > checkpoint)
+               continue;  // part of a checkpoint that did not finish
+            CheckpointTablesRecord tables = (CheckpointTablesRecord) rec;
+            for (Map.Entry<Integer,Long> e : tables.activeTxs().entrySet())
+               if (!finishedTxs.contains(e.getKey()))
+                  putMin(unfinishedTxs, e.getKey(), e.getValue());
+            for (Map.Entry<Block,Long> e : tables.dirtyPages().entrySet())
+               putMin(dirtyPages, e.getKey(), e.getValue());
+         }
+         else if (rec.op() == START) {
+            finishedTxs.remove(tx);
+            unfinishedTxs.put(tx, lsn);
+         }
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK) {
+            finishedTxs.add(tx);
+            unfinishedTxs.remove(tx);
+         }
+         else if (rec.block() != null) {
+            if (!finishedTxs.contains(tx))
+               putMin(unfinishedTxs, tx, lsn);
+            putMin(dirtyPages, rec.block(), lsn);
+         }
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(recoveryThreads());
+      try {
+         redoPass(dirtyPages, pool);
+         undoPass(unfinishedTxs, pool);
+      }
+      finally {
+         pool.shutdown();
+      }
+   }
+
+   /**
+    * The redo pass of recovery.
+    * @param dirtyPages the dirty page table, built by the analysis pass
+    * @param pool the pool that applies the records
+    */
+   private void redoPass(Map<Block,Long> dirtyPages, ForkJoinPool pool) {
+      if (!dirtyPages.isEmpty()) {
+         RecoveryBatch batch = new RecoveryBatch(pool, txnum, true);
+         LogRecordIterator iter = new LogRecordIterator(Collections.min(dirtyPages.values()));
+         while (iter.hasNext()) {
+            LogRecord rec = iter.next();
+            long lsn = iter.lsn();
+            if (lsn >= startLSN)
+               break;
+            Long recoveryLSN = (rec.block() == null) ? null : dirtyPages.get(rec.block());
+            if (recoveryLSN != null && lsn >= recoveryLSN)
+               batch.add(rec, lsn);
+         }
+         batch.apply();
+      }
+   }
+
+   /**
+    * The undo pass of recovery.
+    * While reading backwards, the pass follows the chain of previous
+    * LSNs of each unfinished transaction: only the record that the chain
+    * reaches next is undone, and a compensation record, left by a
+    * rollback that was cut short, moves the chain past the update it
+    * undid. An update is therefore never undone twice.
+    * @param unfinishedTxs the unfinished transactions, built by the analysis pass
+    * @param pool the pool that applies the records
+    */
+   private void undoPass(Map<Integer,Long> unfinishedTxs, ForkJoinPool pool) {
+      if (!unfinishedTxs.isEmpty()) {
+         RecoveryBatch batch = new RecoveryBatch(pool, txnum, false);
+         List<String> created = new ArrayList<String>();
+         Map<Integer,Long> undoNext = new HashMap<Integer,Long>(); // the next LSN to undo of each transaction
+         long oldest = Collections.min(unfinishedTxs.values());
+         LogRecordIterator iter = new LogRecordIterator();
+         while (iter.hasNext()) {
+            LogRecord rec = iter.next();
+            long lsn = iter.lsn();
+            if (lsn < oldest)
+               break;
+            if (lsn >= startLSN || !unfinishedTxs.containsKey(rec.txNumber()))
+               continue;
+            if (rec.block() != null) {
+               Long next = undoNext.get(rec.txNumber());
+               if (next != null && lsn > next)
+                  continue;  // already compensated
+               undoNext.put(rec.txNumber(), rec.prevLSN());
+               batch.add(rec, lsn);  // undoing a compensation record does nothing
+            }
+            else if (rec.op() == CREATE_FILE)
+               created.add(((CreateFileRecord) rec).fileName());
+         }
+         batch.apply();
+         for (String filename : created)
+            dropFile(filename);
+         for (int tx : unfinishedTxs.keySet())
+            new RollbackRecord(tx).writeToLog();
+      }
+   }
+
+   /**
+    * Writes the record that ends this transaction, and removes
+    * the transaction from the table of active transactions.
+    * @return the LSN of the record
+    */
+   private long end(LogRecord rec) {
+      txTableLock.readLock().lock();
+      try {
+         long lsn = rec.writeToLog();
+         activeTxs.remove(txnum);
+         return lsn;
+      }
+      finally {
+         txTableLock.readLock().unlock();
       }
    }
 
+   /**
+    * Deletes a file created by a transaction that did not commit,
+    * together with any buffers that hold its blocks.
+    */
+   private static void dropFile(String filename) {
+      SimpleDB.bufferMgr().discard(filename);
+      SimpleDB.fileMgr().delete(filename);
+   }
+
+   /**
+    * Returns the number of threads that apply recovery batches:
+    * one per processor, but few enough that the tasks,
+    * each pinning one buffer, cannot exhaust the buffer pool.
+    */
+   private static int recoveryThreads() {
+      int processors = Runtime.getRuntime().availableProcessors();
+      return Math.max(1, Math.min(processors, SimpleDB.bufferMgr().available() / 2));
+   }
+
+   private static <K> void putMin(Map<K,Long> map, K key, long lsn) {
+      Long current = map.get(key);
+      if (current == null || lsn < current)
+         map.put(key, lsn);
+   }
+
    /**
     * Determines whether a block comes from a temporary file or not.
     */
@@ -1,78 +1,123 @@
 package simpledb.tx.recovery;
 
-import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.*;
 
 class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset;
+   private int oldval, newval;
    private Block blk;
-
+   private boolean compensation;
+   private long prevLSN;
+   
    /**
     * Creates a new setint log record.
+    * A compensation record is written when an update is undone;
+    * it is redone like any other update, but is never undone itself.
+    * The previous LSN chains together the records of the transaction.
+    * A compensation record points past the update it undoes,
+    * so neither a rollback nor the undo pass of recovery,
+    * which both follow the chain, undoes that update again.
     * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous record to undo
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the update
+    * @param newval the value after the update
+    * @param compensation true if the record compensates for an undone update
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, long prevLSN, Block blk, int offset, int oldval, int newval, boolean compensation) {
       this.txnum = txnum;
+      this.prevLSN = prevLSN;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
+      this.compensation = compensation;
    }
-
+   
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading eight other values from the log.
     * @param rec the basic log record
     */
    public SetIntRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
-      String filename = rec.nextString();
+      compensation = rec.nextInt() != 0;
+      prevLSN = rec.nextLong();
+      String filename = logMgr.fileName(rec.nextInt());
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextInt();
+      oldval = rec.nextInt();
+      newval = rec.nextInt();
    }
-
-   /**
+   
+   /** 
     * Writes a setInt record to the log.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * integer value at that offset.
-    * @return the LSN of the last log value
+    * followed by the transaction id, the compensation flag, the previous LSN,
+    * the file id, number, and offset of the modified block,
+    * and the integer values at that offset before and after the update.
+    * @return the LSN of the log record
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      int fileid = logMgr.fileId(blk.fileName());
+      int size = intSize(SETINT) + intSize(txnum) + intSize(compensation ? 1 : 0)
+               + longSize(prevLSN) + intSize(fileid) + intSize(blk.number())
+               + intSize(offset) + intSize(oldval) + intSize(newval);
+      return logMgr.reserve(size)
+                   .putInt(SETINT).putInt(txnum).putInt(compensation ? 1 : 0).putLong(prevLSN)
+                   .putInt(fileid).putInt(blk.number()).putInt(offset)
+                   .putInt(oldval).putInt(newval).end();
    }
-
+   
    public int op() {
       return SETINT;
    }
-
+   
    public int txNumber() {
       return txnum;
    }
-
+   
+   public Block block() {
+      return blk;
+   }
+   
+   public long prevLSN() {
+      return prevLSN;
+   }
+   
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " "
+            + oldval + " " + newval + (compensation ? " CLR>" : ">");
    }
-
+   
    /**
-    * Replaces the specified data value with the value saved in the log record.
-    * The method pins a buffer to the specified block,
-    * calls setInt to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
-    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    * Redoes the update, if the page does not already reflect it.
+    * The method stores the new value in the buffer
+    * if the page LSN is below the LSN of this record.
+    * @see simpledb.tx.recovery.LogRecord#redo(Buffer, int, long)
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {
+      if (buff.pageLSN() < lsn)
+         buff.setInt(offset, newval, txnum, lsn);
+   }
+   
+   /** 
+    * Replaces the specified data value with the old value saved in the log record.
+    * The method logs a compensation record for the change,
+    * and calls setInt to restore the saved value.
+    * Compensation records are not undone.
+    * @see simpledb.tx.recovery.LogRecord#undo(Buffer, int)
     */
-   public void undo(int txnum) {
-      BufferMgr buffMgr = SimpleDB.bufferMgr();
-      Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
-      buffMgr.unpin(buff);
+   public void undo(Buffer buff, int txnum) {
+      if (compensation)
+         return;
+      synchronized (buff) {  // a checkpoint sees either the change or its record
+         long lsn = new SetIntRecord(this.txnum, prevLSN, blk, offset, newval, oldval, true).writeToLog();
+         buff.setInt(offset, oldval, txnum, lsn);
+      }
    }
 }
@@ -1,54 +1,76 @@
 package simpledb.tx.recovery;
 
-import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.*;
 
 class SetStringRecord implements LogRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
+   private boolean compensation;
+   private long prevLSN;
    
    /**
     * Creates a new setstring log record.
+    * A compensation record is written when an update is undone;
+    * it is redone like any other update, but is never undone itself.
+    * The previous LSN chains together the records of the transaction.
+    * A compensation record points past the update it undoes,
+    * so neither a rollback nor the undo pass of recovery,
+    * which both follow the chain, undoes that update again.
     * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous record to undo
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the update
+    * @param newval the value after the update
+    * @param compensation true if the record compensates for an undone update
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, long prevLSN, Block blk, int offset, String oldval, String newval, boolean compensation) {
       this.txnum = txnum;
+      this.prevLSN = prevLSN;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
+      this.compensation = compensation;
    }
    
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading eight other values from the log.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
-      String filename = rec.nextString();
+      compensation = rec.nextInt() != 0;
+      prevLSN = rec.nextLong();
+      String filename = logMgr.fileName(rec.nextInt());
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
    }
    
    /** 
     * Writes a setString record to the log.
     * This log record contains the SETSTRING operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * string value at that offset.
-    * @return the LSN of the last log value
+    * followed by the transaction id, the compensation flag, the previous LSN,
+    * the file id, number, and offset of the modified block,
+    * and the string values at that offset before and after the update.
+    * @return the LSN of the log record
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      int fileid = logMgr.fileId(blk.fileName());
+      int size = intSize(SETSTRING) + intSize(txnum) + intSize(compensation ? 1 : 0)
+               + longSize(prevLSN) + intSize(fileid) + intSize(blk.number())
+               + intSize(offset) + strSize(oldval) + strSize(newval);
+      return logMgr.reserve(size)
+                   .putInt(SETSTRING).putInt(txnum).putInt(compensation ? 1 : 0).putLong(prevLSN)
+                   .putInt(fileid).putInt(blk.number()).putInt(offset)
+                   .putString(oldval).putString(newval).end();
    }
    
    public int op() {
@@ -59,21 +81,43 @@ class SetStringRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return blk;
+   }
+   
+   public long prevLSN() {
+      return prevLSN;
+   }
+   
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " "
+            + oldval + " " + newval + (compensation ? " CLR>" : ">");
+   }
+   
+   /**
+    * Redoes the update, if the page does not already reflect it.
+    * The method stores the new value in the buffer
+    * if the page LSN is below the LSN of this record.
+    * @see simpledb.tx.recovery.LogRecord#redo(Buffer, int, long)
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {
+      if (buff.pageLSN() < lsn)
+         buff.setString(offset, newval, txnum, lsn);
    }
    
    /** 
-    * Replaces the specified data value with the value saved in the log record.
-    * The method pins a buffer to the specified block,
-    * calls setString to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
-    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    * Replaces the specified data value with the old value saved in the log record.
+    * The method logs a compensation record for the change,
+    * and calls setString to restore the saved value.
+    * Compensation records are not undone.
+    * @see simpledb.tx.recovery.LogRecord#undo(Buffer, int)
     */
-   public void undo(int txnum) {
-      BufferMgr buffMgr = SimpleDB.bufferMgr();
-      Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
-      buffMgr.unpin(buff);
+   public void undo(Buffer buff, int txnum) {
+      if (compensation)
+         return;
+      synchronized (buff) {  // a checkpoint sees either the change or its record
+         long lsn = new SetStringRecord(this.txnum, prevLSN, blk, offset, newval, oldval, true).writeToLog();
+         buff.setString(offset, oldval, txnum, lsn);
+      }
    }
 }
@@ -1,6 +1,9 @@
 package simpledb.tx.recovery;
 
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import static simpledb.log.LogWriter.intSize;
 
 class StartRecord implements LogRecord {
    private int txnum;
@@ -25,11 +28,10 @@ class StartRecord implements LogRecord {
     * Writes a start record to the log.
     * This log record contains the START operator,
     * followed by the transaction id.
-    * @return the LSN of the last log value
+    * @return the LSN of the log record
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {START, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return logMgr.reserve(intSize(START) + intSize(txnum)).putInt(START).putInt(txnum).end();
    }
    
    public int op() {
@@ -40,11 +42,25 @@ class StartRecord implements LogRecord {
       return txnum;
    }
    
+   public Block block() {
+      return null;
+   }
+   
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(Buffer buff, int txnum, long lsn) {}
+   
    /**
     * Does nothing, because a start record
     * contains no undo information.
     */
-   public void undo(int txnum) {}
+   public void undo(Buffer buff, int txnum) {}
    
    public String toString() {
       return "<START " + txnum + ">";